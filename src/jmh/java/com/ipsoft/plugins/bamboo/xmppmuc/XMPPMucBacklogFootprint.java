@@ -0,0 +1,147 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+import com.atlassian.bamboo.plan.cache.ImmutablePlan;
+import com.atlassian.bamboo.resultsummary.ResultsSummary;
+import com.atlassian.bamboo.variable.CustomVariableContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures the heap a backlog of queued notifications retains. Notifications go through XMPPMucNotificationTransport
+ * the way Bamboo sends them, one transport per notification, into the real XMPPMucDeliveryQueue whose workers are
+ * stuck sending, as they are while no IM server answers, and the used heap is compared before and after.
+ * The figure depends on the JVM, its collector and heap size, which is why it is reported here and not asserted by
+ * XMPPMucFootprintTest.
+ *
+ * Settings are system properties:
+ * -Dfootprint.notifications (20000), -Dfootprint.rooms (20), -Dfootprint.plans (50), -Dfootprint.bodyChars (120).
+ */
+public class XMPPMucBacklogFootprint
+{
+    public static void main(String[] args) throws Exception
+    {
+        int notifications = Integer.getInteger("footprint.notifications", 20000);
+        int rooms = Integer.getInteger("footprint.rooms", 20);
+        int plans = Integer.getInteger("footprint.plans", 50);
+        int bodyChars = Integer.getInteger("footprint.bodyChars", 120);
+
+        File directory = File.createTempFile("xmppmuc-footprint", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("unable to create " + directory);
+        }
+        System.setProperty("xmppmuc.outbox.dir", directory.getPath());
+        //Room for the whole backlog however the rooms hash, anything over it would go to the outbox instead
+        System.setProperty("xmppmuc.queue.capacity", String.valueOf(notifications * XMPPMucSettings.getQueueWorkers()));
+        System.setProperty("xmppmuc.queue.overflow", "DROP_NEWEST");
+
+        CountDownLatch unreachable = new CountDownLatch(1);
+        XMPPMucMetrics metrics = new XMPPMucMetrics();
+        XMPPMucMessageSender sender = new StuckSender(unreachable);
+        XMPPMucOutbox outbox = new XMPPMucOutbox(sender, metrics);
+        XMPPMucDeliveryQueue queue = new XMPPMucDeliveryQueue(sender, outbox, metrics);
+        XMPPMucCoalescer coalescer = new XMPPMucCoalescer(queue);
+        XMPPMucSuppressor suppressor = new XMPPMucSuppressor(queue, metrics);
+
+        ImmutablePlan[] planMocks = new ImmutablePlan[plans];
+        for (int i = 0; i < plans; i++) {
+            planMocks[i] = mock(ImmutablePlan.class, withSettings().stubOnly());
+            when(planMocks[i].getKey()).thenReturn("BAM-PLAN" + i);
+            when(planMocks[i].getName()).thenReturn("Plan BAM-PLAN" + i);
+        }
+        CustomVariableContext variables = XMPPMucPluginHarness.customVariableContext();
+        ResultsSummary failed = resultsSummary(BuildState.FAILED);
+        ResultsSummary successful = resultsSummary(BuildState.SUCCESS);
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < bodyChars) {
+            padding.append("All tests passed, 1 test fixed. ");
+        }
+        String body = padding.substring(0, bodyChars);
+
+        long before = usedHeap();
+        for (int i = 0; i < notifications; i++) {
+            XMPPMucNotificationTransport transport = new XMPPMucNotificationTransport(
+                    "room" + (i % rooms) + "@conference.example.com", null, null, "Bamboo", null, null, false,
+                    0, 1, 0, 0, null, planMocks[i % plans], i % 3 == 0 ? failed : successful, null,
+                    variables, coalescer, suppressor);
+            transport.sendNotification(XMPPMucPluginHarness.notification("BAM-PLAN" + (i % plans) + " #" + i + " " + body));
+        }
+        long after = usedHeap();
+        int queued = queue.getQueueDepth();
+
+        System.out.println("XMPP MUC backlog footprint: " + notifications + " notifications, " + rooms + " rooms, "
+                + plans + " plans, " + bodyChars + " character bodies");
+        System.out.println("  queued         " + queued + ", in the outbox " + outbox.getPendingCount());
+        System.out.println("  retained       " + Math.max(0, after - before) / 1024 + " KB");
+        System.out.println("  per message    " + (queued > 0 ? Math.max(0, after - before) / queued : 0) + " bytes");
+
+        unreachable.countDown();
+        suppressor.destroy();
+        coalescer.destroy();
+        queue.destroy();
+        outbox.destroy();
+        metrics.destroy();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static ResultsSummary resultsSummary(BuildState state)
+    {
+        ResultsSummary resultsSummary = mock(ResultsSummary.class, withSettings().stubOnly());
+        when(resultsSummary.getBuildState()).thenReturn(state);
+        return resultsSummary;
+    }
+
+    private static long usedHeap() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        //Several rounds, until a collection frees nothing more
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * Blocks every send until released, like a server that accepted the connection but never answers.
+     */
+    private static final class StuckSender extends XMPPMucMessageSender
+    {
+        private final CountDownLatch released;
+
+        StuckSender(CountDownLatch released)
+        {
+            super(null, null, null, null, null, null);
+            this.released = released;
+        }
+
+        public long trySend(XMPPMucMessage message)
+        {
+            try {
+                released.await();
+                return DONE;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return UNREACHABLE;
+            }
+        }
+    }
+}
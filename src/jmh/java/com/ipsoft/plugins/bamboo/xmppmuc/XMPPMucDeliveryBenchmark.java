@@ -0,0 +1,99 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.notification.Notification;
+import com.atlassian.bamboo.notification.NotificationTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end sendNotification(): enqueue on the calling thread, then connection, room and groupchat send on the
+ * delivery workers, measured until the stand-in server has received the message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+//Rate limits off, this measures the delivery path rather than the configured stanza rate
+@Fork(value = 1, jvmArgsAppend = { "-Dxmppmuc.rate.roomPerSecond=0", "-Dxmppmuc.rate.accountPerSecond=0" })
+public class XMPPMucDeliveryBenchmark
+{
+    private static final int FAN_OUT_ROOMS = 5;
+
+    private XMPPMucStandInServer server;
+    private XMPPMucPluginHarness harness;
+    private NotificationTransport transport;
+    private NotificationTransport fanOutTransport;
+    private Notification notification;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        server = new XMPPMucStandInServer();
+        harness = new XMPPMucPluginHarness(server.getDomain(), server.getPort());
+
+        XMPPMucNotificationRecipient recipient = new XMPPMucNotificationRecipient();
+        recipient.setCustomVariableContext(XMPPMucPluginHarness.customVariableContext());
+        recipient.setXmppMucCoalescer(harness.coalescer);
+        recipient.setXmppMucSuppressor(harness.suppressor);
+        recipient.init(XMPPMucPluginHarness.recipientConfig("builds@" + server.getMucService()));
+        transport = recipient.getTransports().get(0);
+
+        XMPPMucNotificationRecipient fanOut = new XMPPMucNotificationRecipient();
+        fanOut.setCustomVariableContext(XMPPMucPluginHarness.customVariableContext());
+        fanOut.setXmppMucCoalescer(harness.coalescer);
+        fanOut.setXmppMucSuppressor(harness.suppressor);
+        StringBuilder rooms = new StringBuilder();
+        for (int i = 0; i < FAN_OUT_ROOMS; i++) {
+            rooms.append(i > 0 ? "," : "").append("team").append(i).append('@').append(server.getMucService());
+        }
+        fanOut.init(XMPPMucPluginHarness.recipientConfig(rooms.toString()));
+        fanOutTransport = fanOut.getTransports().get(0);
+        notification = XMPPMucPluginHarness.notification("Plan BAM-MAIN build 42 failed");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        harness.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void sendAndAwaitDelivery() throws InterruptedException
+    {
+        long expected = server.getReceivedCount() + 1;
+        transport.sendNotification(notification);
+        if (!server.awaitReceived(expected, 30000)) {
+            throw new IllegalStateException("Notification was not delivered to the stand-in server");
+        }
+    }
+
+    /**
+     * One recipient listing several rooms: compare with sendAndAwaitDelivery, the rooms are joined and sent to
+     * concurrently so this should cost close to a single delivery rather than FAN_OUT_ROOMS of them.
+     */
+    @Benchmark
+    public void fanOutAndAwaitDelivery() throws InterruptedException
+    {
+        long expected = server.getReceivedCount() + FAN_OUT_ROOMS;
+        fanOutTransport.sendNotification(notification);
+        if (!server.awaitReceived(expected, 30000)) {
+            throw new IllegalStateException("Notification was not delivered to every room on the stand-in server");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.notification.Notification;
+import com.atlassian.bamboo.notification.NotificationTransport;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drives XMPPMucNotificationTransport with N notifications spread over M rooms from several concurrent "Bamboo"
+ * threads against the in-process stand-in server, and reports delivered notifications per second and the
+ * p50/p99/p999 latency from sendNotification() to arrival at the server.
+ *
+ * Settings are system properties:
+ * -Dload.notifications (10000), -Dload.rooms (20), -Dload.threads (8), -Dload.tls (false),
+ * -Dload.latencyMillis (0), -Dload.failureRate (0.0), -Dload.timeoutSeconds (120).
+ * Plugin settings such as -Dxmppmuc.queue.workers apply as usual; the queue defaults to BLOCK and the rate limits
+ * to off here so the generator measures delivery rather than the overflow policy or the configured stanza rates.
+ * Set -Dxmppmuc.rate.roomPerSecond and -Dxmppmuc.rate.accountPerSecond to see the effect of throttling.
+ */
+public class XMPPMucLoadTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        final int notifications = Integer.getInteger("load.notifications", 10000);
+        int rooms = Integer.getInteger("load.rooms", 20);
+        int threads = Integer.getInteger("load.threads", 8);
+        boolean tls = Boolean.getBoolean("load.tls");
+        long latencyMillis = Long.getLong("load.latencyMillis", 0L);
+        double failureRate = Double.parseDouble(System.getProperty("load.failureRate", "0"));
+        long timeoutSeconds = Long.getLong("load.timeoutSeconds", 120L);
+        if (System.getProperty("xmppmuc.queue.overflow") == null) {
+            System.setProperty("xmppmuc.queue.overflow", "BLOCK");
+        }
+        if (System.getProperty("xmppmuc.rate.roomPerSecond") == null) {
+            System.setProperty("xmppmuc.rate.roomPerSecond", "0");
+        }
+        if (System.getProperty("xmppmuc.rate.accountPerSecond") == null) {
+            System.setProperty("xmppmuc.rate.accountPerSecond", "0");
+        }
+
+        XMPPMucStandInServer server = new XMPPMucStandInServer("127.0.0.1", tls);
+        server.setLatencyMillis(latencyMillis);
+        server.setFailureRate(failureRate);
+        XMPPMucPluginHarness harness = new XMPPMucPluginHarness(server.getDomain(), server.getPort(), tls);
+
+        final NotificationTransport[] transports = new NotificationTransport[rooms];
+        for (int i = 0; i < rooms; i++) {
+            XMPPMucNotificationRecipient recipient = new XMPPMucNotificationRecipient();
+            recipient.setCustomVariableContext(XMPPMucPluginHarness.customVariableContext());
+            recipient.setXmppMucCoalescer(harness.coalescer);
+            recipient.setXmppMucSuppressor(harness.suppressor);
+            recipient.init(XMPPMucPluginHarness.recipientConfig("load" + i + "@" + server.getMucService()));
+            transports[i] = recipient.getTransports().get(0);
+        }
+
+        final AtomicLongArray sentAt = new AtomicLongArray(notifications);
+        final long[] latencies = new long[notifications];
+        final AtomicInteger delivered = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(notifications);
+        server.setMessageListener(new XMPPMucStandInServer.MessageListener() {
+            public void onGroupChat(String room, String body, long receivedNanos) {
+                if (!body.startsWith("load ")) {
+                    return;
+                }
+                int id = Integer.parseInt(body.substring(5));
+                //Outbox replay is at-least-once, a notification can arrive twice
+                int index = delivered.getAndIncrement();
+                if (index < latencies.length) {
+                    latencies[index] = receivedNanos - sentAt.get(id);
+                }
+                done.countDown();
+            }
+        });
+
+        ExecutorService senders = Executors.newFixedThreadPool(threads);
+        final AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            senders.execute(new Runnable() {
+                public void run() {
+                    int id;
+                    while ((id = next.getAndIncrement()) < notifications) {
+                        Notification notification = XMPPMucPluginHarness.notification("load " + id);
+                        sentAt.set(id, System.nanoTime());
+                        transports[id % transports.length].sendNotification(notification);
+                    }
+                }
+            });
+        }
+        senders.shutdown();
+        boolean complete = done.await(timeoutSeconds, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        int count = Math.min(delivered.get(), notifications);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.println("XMPP MUC load test: " + notifications + " notifications, " + rooms + " rooms, " + threads + " threads"
+                + (tls ? ", STARTTLS" : "") + ", injected latency " + latencyMillis + "ms, failure rate " + failureRate);
+        System.out.println("  delivered      " + count + (complete ? "" : " (timed out, " + (notifications - count) + " missing)"));
+        System.out.println("  injected fails " + server.getInjectedFailureCount() + ", logins " + server.getLoginCount() + ", joins " + server.getJoinCount());
+        System.out.println("  throughput     " + String.format("%.1f", count / (elapsed / 1e9)) + " notifications/s");
+        System.out.println("  latency p50    " + millis(percentile(sorted, 0.50)) + " ms");
+        System.out.println("  latency p99    " + millis(percentile(sorted, 0.99)) + " ms");
+        System.out.println("  latency p999   " + millis(percentile(sorted, 0.999)) + " ms");
+
+        harness.close();
+        server.close();
+        System.exit(complete ? 0 : 1);
+    }
+
+    private static long percentile(long[] sorted, double percentile)
+    {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,140 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.instantmessagingserver.InstantMessagingServerDefinition;
+import com.atlassian.bamboo.instantmessagingserver.InstantMessagingServerDefinitionImpl;
+import com.atlassian.bamboo.instantmessagingserver.InstantMessagingServerManager;
+import com.atlassian.bamboo.notification.Notification;
+import com.atlassian.bamboo.variable.CustomVariableContext;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Wires the plugin's components the way atlassian-plugin.xml does, without Bamboo or Spring, against an IM server
+ * definition pointing at the given host and port. Bamboo collaborators are replaced by stub-only mocks.
+ */
+public class XMPPMucPluginHarness implements Closeable
+{
+    public final XMPPMucMetrics metrics;
+    public final XMPPMucConnectionConfigurationFactory configurationFactory;
+    public final XMPPMucConnectionManager connectionManager;
+    public final XMPPMucRoomManager roomManager;
+    public final XMPPMucServiceDiscoveryCache discoveryCache;
+    public final XMPPMucServerDefinitionCache serverDefinitionCache;
+    public final XMPPMucServerRouter serverRouter;
+    public final XMPPMucRateLimiter rateLimiter;
+    public final XMPPMucMessageSender sender;
+    public final XMPPMucOutbox outbox;
+    public final XMPPMucDeliveryQueue deliveryQueue;
+    public final XMPPMucCoalescer coalescer;
+    public final XMPPMucSuppressor suppressor;
+
+    public XMPPMucPluginHarness(String host, int port)
+    {
+        this(host, port, false);
+    }
+
+    /**
+     *
+     * @param host
+     * @param port
+     * @param secure require TLS, as the IM server definition's "secure connection required" flag does
+     */
+    public XMPPMucPluginHarness(String host, int port, boolean secure)
+    {
+        //Journal into a scratch directory rather than a Bamboo home, unless told otherwise
+        if (System.getProperty("xmppmuc.outbox.dir") == null) {
+            try {
+                System.setProperty("xmppmuc.outbox.dir", Files.createTempDirectory("xmppmuc-outbox").toString());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create an outbox directory", e);
+            }
+        }
+        metrics = new XMPPMucMetrics();
+        configurationFactory = new XMPPMucConnectionConfigurationFactory();
+        connectionManager = new XMPPMucConnectionManager(configurationFactory, metrics);
+        roomManager = new XMPPMucRoomManager(metrics);
+        discoveryCache = new XMPPMucServiceDiscoveryCache(metrics);
+        serverDefinitionCache = new XMPPMucServerDefinitionCache(connectionManager, roomManager, discoveryCache);
+        serverDefinitionCache.setInstantMessagingServerManager(instantMessagingServerManager(host, port, secure));
+        serverRouter = new XMPPMucServerRouter(serverDefinitionCache);
+        rateLimiter = new XMPPMucRateLimiter(metrics);
+        sender = new XMPPMucMessageSender(connectionManager, roomManager, discoveryCache, serverRouter, rateLimiter, metrics);
+        outbox = new XMPPMucOutbox(sender, metrics);
+        deliveryQueue = new XMPPMucDeliveryQueue(sender, outbox, metrics);
+        coalescer = new XMPPMucCoalescer(deliveryQueue);
+        suppressor = new XMPPMucSuppressor(deliveryQueue, metrics);
+    }
+
+    public void close()
+    {
+        suppressor.destroy();
+        coalescer.destroy();
+        deliveryQueue.destroy();
+        outbox.destroy();
+        serverDefinitionCache.destroy();
+        roomManager.destroy();
+        connectionManager.destroy();
+        metrics.destroy();
+    }
+
+    /**
+     * @return an IM server manager holding a single definition for the host and port
+     */
+    public static InstantMessagingServerManager instantMessagingServerManager(String host, int port, boolean secure)
+    {
+        InstantMessagingServerDefinition server = new InstantMessagingServerDefinitionImpl(
+                1L, "stand-in", host, Integer.valueOf(port), "bamboo", "secret", "bench", false, secure);
+        List<InstantMessagingServerDefinition> servers = Collections.singletonList(server);
+        InstantMessagingServerManager manager = mock(InstantMessagingServerManager.class, withSettings().stubOnly());
+        doReturn(servers).when(manager).getAllInstantMessagingServers();
+        return manager;
+    }
+
+    /**
+     * @return a variable context that returns its input unchanged, like Bamboo's for text without variables
+     */
+    public static CustomVariableContext customVariableContext()
+    {
+        CustomVariableContext context = mock(CustomVariableContext.class, withSettings().stubOnly());
+        when(context.substituteString(anyString())).thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) {
+                return (String) invocation.getArguments()[0];
+            }
+        });
+        return context;
+    }
+
+    /**
+     * @return a notification whose IM content is the given text
+     */
+    public static Notification notification(String imContent)
+    {
+        Notification notification = mock(Notification.class, withSettings().stubOnly());
+        when(notification.getIMContent()).thenReturn(imContent);
+        return notification;
+    }
+
+    /**
+     * @return stored recipient configuration for the room, as Bamboo would pass it to init()
+     */
+    public static String recipientConfig(String room)
+    {
+        XMPPMucNotificationRecipient recipient = new XMPPMucNotificationRecipient();
+        recipient.init("<" + XMPPMucNotificationRecipient.class.getName() + "><room>" + room + "</room><roompw/><nickname>Bamboo</nickname></"
+                + XMPPMucNotificationRecipient.class.getName() + ">");
+        return recipient.getRecipientConfig();
+    }
+}
@@ -0,0 +1,52 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of XMPPMucNotificationRecipient.init() and getRecipientConfig(), which Bamboo calls for every recipient of
+ * every notification set it loads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMPPMucRecipientConfigBenchmark
+{
+    private String config;
+    private XMPPMucNotificationRecipient recipient;
+
+    @Setup
+    public void setUp()
+    {
+        config = XMPPMucPluginHarness.recipientConfig("builds@conference.example.com");
+        recipient = new XMPPMucNotificationRecipient();
+        recipient.init(config);
+    }
+
+    @Benchmark
+    public XMPPMucNotificationRecipient init()
+    {
+        XMPPMucNotificationRecipient fresh = new XMPPMucNotificationRecipient();
+        fresh.init(config);
+        return fresh;
+    }
+
+    @Benchmark
+    public String getRecipientConfig()
+    {
+        return recipient.getRecipientConfig();
+    }
+}
@@ -0,0 +1,568 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for an XMPP server, covering only what the plugin uses: STARTTLS, SASL PLAIN, resource binding,
+ * roster, disco#items/disco#info for one MUC service, MUC join/leave presence and groupchat messages.
+ * It is not an XMPP implementation; stanzas are split on element boundaries and answered with canned replies.
+ * Bound to the loopback interface so benchmarks run without network access. Latency and failures can be injected
+ * to see how delivery behaves against a slow or flaky server.
+ */
+public class XMPPMucStandInServer implements Closeable
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String KEYSTORE = "/xmpp-standin.jks";
+    private static final char[] KEYSTORE_PASSWORD = "standin".toCharArray();
+
+    /**
+     * Receives every groupchat message as it arrives, on the connection's thread.
+     */
+    public interface MessageListener
+    {
+        void onGroupChat(String room, String body, long receivedNanos);
+    }
+
+    private final String domain;
+    private final String mucService;
+    private final ServerSocket serverSocket;
+    private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicInteger joins = new AtomicInteger();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger streamIds = new AtomicInteger();
+    private final AtomicInteger injectedFailures = new AtomicInteger();
+    private final SSLContext sslContext;
+    private volatile MessageListener messageListener;
+    private volatile boolean running = true;
+    private volatile long latencyMillis;
+    private volatile double failureRate;
+    private volatile boolean rejectLogins;
+
+    public XMPPMucStandInServer() throws IOException
+    {
+        this("127.0.0.1", false);
+    }
+
+    /**
+     *
+     * @param domain the XMPP domain, must match the host the IM server definition points at
+     * @param requireTls offer STARTTLS as required, with a self-signed certificate
+     */
+    public XMPPMucStandInServer(String domain, boolean requireTls) throws IOException
+    {
+        this.domain = domain;
+        this.sslContext = requireTls ? loadSslContext() : null;
+        this.mucService = "conference." + domain;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "xmpp-standin-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getMucService() {
+        return mucService;
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public int getJoinCount() {
+        return joins.get();
+    }
+
+    public int getLoginCount() {
+        return logins.get();
+    }
+
+    public int getInjectedFailureCount() {
+        return injectedFailures.get();
+    }
+
+    public void setMessageListener(MessageListener messageListener) {
+        this.messageListener = messageListener;
+    }
+
+    /**
+     * @param latencyMillis delay before every reply and before a groupchat message is accepted
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param failureRate probability, 0 to 1, that a room join or groupchat message kills the client's connection instead
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @param rejectLogins answer every SASL attempt with not-authorized
+     */
+    public void setRejectLogins(boolean rejectLogins) {
+        this.rejectLogins = rejectLogins;
+    }
+
+    /**
+     *
+     * @param count
+     * @param timeoutMillis
+     * @return true once at least count groupchat messages have arrived in total
+     */
+    public boolean awaitReceived(long count, long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (received.get() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(0, 100000);
+        }
+        return true;
+    }
+
+    public void close() throws IOException
+    {
+        running = false;
+        serverSocket.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    private void accept()
+    {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                final Session session = new Session(socket);
+                sessions.add(session);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            session.run();
+                        } finally {
+                            sessions.remove(session);
+                            session.close();
+                        }
+                    }
+                }, "xmpp-standin-session");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * One client stream. Reading and stanza handling happen on the session's own thread.
+     */
+    protected class Session implements Closeable
+    {
+        protected Socket socket;
+        protected Reader reader;
+        protected Writer writer;
+        protected String fullJid;
+        private boolean secured;
+        private boolean authenticated;
+        private final DocumentBuilder documentBuilder;
+
+        Session(Socket socket) throws IOException
+        {
+            this.socket = socket;
+            this.reader = new InputStreamReader(socket.getInputStream(), UTF8);
+            this.writer = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+            try {
+                this.documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void run()
+        {
+            try {
+                StanzaSplitter splitter = new StanzaSplitter();
+                String token;
+                while ((token = splitter.next(reader)) != null) {
+                    if (token.startsWith("<stream:stream")) {
+                        openStream();
+                    } else if (token.startsWith("</stream:stream")) {
+                        send("</stream:stream>");
+                        return;
+                    } else {
+                        Element stanza = parse(token);
+                        if (stanza != null) {
+                            handle(stanza);
+                        }
+                    }
+                }
+            } catch (SocketException e) {
+                //Client went away
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        protected void openStream() throws IOException
+        {
+            StringBuilder out = new StringBuilder();
+            out.append("<?xml version='1.0' encoding='UTF-8'?>")
+                    .append("<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'")
+                    .append(" id='standin-").append(streamIds.incrementAndGet()).append("' from='").append(domain)
+                    .append("' version='1.0'>");
+            out.append("<stream:features>");
+            if (authenticated) {
+                out.append("<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>");
+            } else if (sslContext != null && !secured) {
+                out.append("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'><required/></starttls>");
+            } else {
+                out.append("<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms>");
+            }
+            out.append("</stream:features>");
+            send(out.toString());
+        }
+
+        /**
+         * Answers proceed and switches the session onto TLS; the client restarts the stream over the new socket.
+         */
+        protected void startTls() throws IOException
+        {
+            send("<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+            SSLSocket tls = (SSLSocket) sslContext.getSocketFactory().createSocket(
+                    socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+            tls.setUseClientMode(false);
+            tls.startHandshake();
+            synchronized (this) {
+                socket = tls;
+                reader = new InputStreamReader(tls.getInputStream(), UTF8);
+                writer = new OutputStreamWriter(tls.getOutputStream(), UTF8);
+            }
+            secured = true;
+        }
+
+        protected void handle(Element stanza) throws IOException
+        {
+            String name = stanza.getTagName();
+            if ("starttls".equals(name) && sslContext != null) {
+                startTls();
+            } else if ("auth".equals(name)) {
+                delay();
+                if (rejectLogins) {
+                    send("<failure xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><not-authorized/></failure>");
+                    return;
+                }
+                authenticated = true;
+                logins.incrementAndGet();
+                send("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+            } else if ("iq".equals(name)) {
+                handleIq(stanza);
+            } else if ("presence".equals(name)) {
+                handlePresence(stanza);
+            } else if ("message".equals(name)) {
+                handleMessage(stanza);
+            }
+        }
+
+        protected void handleIq(Element iq) throws IOException
+        {
+            String id = iq.getAttribute("id");
+            String to = iq.getAttribute("to");
+            String type = iq.getAttribute("type");
+            if ("result".equals(type) || "error".equals(type)) {
+                return;
+            }
+            Element child = firstChild(iq);
+            String ns = child != null ? child.getAttribute("xmlns") : "";
+            delay();
+
+            StringBuilder reply = new StringBuilder("<iq type='result' id='").append(escape(id)).append('\'');
+            if (to.length() > 0) {
+                reply.append(" from='").append(escape(to)).append('\'');
+            }
+            if (fullJid != null) {
+                reply.append(" to='").append(escape(fullJid)).append('\'');
+            }
+
+            if ("urn:ietf:params:xml:ns:xmpp-bind".equals(ns)) {
+                Element resource = child != null ? firstChild(child) : null;
+                String resourceName = resource != null ? resource.getTextContent() : "standin";
+                fullJid = "bamboo@" + domain + "/" + resourceName;
+                reply.append("><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>").append(escape(fullJid))
+                        .append("</jid></bind></iq>");
+            } else if ("jabber:iq:roster".equals(ns)) {
+                reply.append("><query xmlns='jabber:iq:roster'/></iq>");
+            } else if ("http://jabber.org/protocol/disco#items".equals(ns)) {
+                reply.append("><query xmlns='http://jabber.org/protocol/disco#items'>");
+                if (to.length() == 0 || domain.equals(to)) {
+                    reply.append("<item jid='").append(mucService).append("' name='Chat rooms'/>");
+                }
+                reply.append("</query></iq>");
+            } else if ("http://jabber.org/protocol/disco#info".equals(ns)) {
+                reply.append("><query xmlns='http://jabber.org/protocol/disco#info'>");
+                if (mucService.equals(to)) {
+                    reply.append("<identity category='conference' type='text' name='Chat rooms'/>")
+                            .append("<feature var='http://jabber.org/protocol/muc'/>");
+                } else {
+                    reply.append("<identity category='server' type='im' name='stand-in'/>");
+                }
+                reply.append("<feature var='http://jabber.org/protocol/disco#info'/></query></iq>");
+            } else {
+                reply.append("/>");
+            }
+            send(reply.toString());
+        }
+
+        protected void handlePresence(Element presence) throws IOException
+        {
+            String to = presence.getAttribute("to");
+            if (to.length() == 0 || to.indexOf('/') < 0) {
+                return;
+            }
+            boolean leaving = "unavailable".equals(presence.getAttribute("type"));
+            if (!leaving) {
+                failMaybe();
+                joins.incrementAndGet();
+            }
+            delay();
+            StringBuilder reply = new StringBuilder("<presence from='").append(escape(to)).append("' to='")
+                    .append(escape(fullJid)).append('\'');
+            if (leaving) {
+                reply.append(" type='unavailable'");
+            }
+            reply.append("><x xmlns='http://jabber.org/protocol/muc#user'><item affiliation='member' role='")
+                    .append(leaving ? "none" : "participant").append("'/><status code='110'/></x></presence>");
+            send(reply.toString());
+        }
+
+        protected void handleMessage(Element message) throws IOException
+        {
+            if (!"groupchat".equals(message.getAttribute("type"))) {
+                return;
+            }
+            failMaybe();
+            delay();
+            long now = System.nanoTime();
+            String room = message.getAttribute("to");
+            NodeList bodies = message.getElementsByTagName("body");
+            String body = bodies.getLength() > 0 ? bodies.item(0).getTextContent() : "";
+            received.incrementAndGet();
+            MessageListener listener = messageListener;
+            if (listener != null) {
+                listener.onGroupChat(room, body, now);
+            }
+        }
+
+        protected synchronized void send(String xml) throws IOException
+        {
+            writer.write(xml);
+            writer.flush();
+        }
+
+        private void delay() throws IOException
+        {
+            long latency = latencyMillis;
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        /**
+         * Drops the connection without a stream close, the way a crashed server or a NAT timeout would.
+         */
+        private void failMaybe() throws IOException
+        {
+            double rate = failureRate;
+            if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+                injectedFailures.incrementAndGet();
+                socket.close();
+                throw new SocketException("Injected failure");
+            }
+        }
+
+        private Element parse(String token)
+        {
+            try {
+                Document document = documentBuilder.parse(new InputSource(new StringReader(token)));
+                return document.getDocumentElement();
+            } catch (SAXException e) {
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        public void close()
+        {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Already closed
+            }
+        }
+    }
+
+    private static SSLContext loadSslContext() throws IOException
+    {
+        InputStream in = XMPPMucStandInServer.class.getResourceAsStream(KEYSTORE);
+        if (in == null) {
+            throw new IOException("Missing stand-in keystore " + KEYSTORE);
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(in, KEYSTORE_PASSWORD);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Element firstChild(Element element)
+    {
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    static String escape(String value)
+    {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&apos;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Splits the client's character stream into the stream header, the stream close tag and complete top-level stanzas.
+     */
+    static class StanzaSplitter
+    {
+        private final StringBuilder current = new StringBuilder();
+        private int depth;
+
+        /**
+         * @return the next token, or null at end of stream
+         */
+        String next(Reader in) throws IOException
+        {
+            current.setLength(0);
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c != '<') {
+                    if (depth > 0) {
+                        current.append((char) c);
+                    }
+                    continue;
+                }
+                String tag = readTag(in);
+                if (tag.startsWith("<?") || tag.startsWith("<!")) {
+                    continue;
+                }
+                if (tag.startsWith("<stream:stream")) {
+                    return tag;
+                }
+                if (tag.startsWith("</stream:stream")) {
+                    return tag;
+                }
+                current.append(tag);
+                if (tag.startsWith("</")) {
+                    depth--;
+                } else if (!tag.endsWith("/>")) {
+                    depth++;
+                }
+                if (depth == 0) {
+                    return current.toString();
+                }
+            }
+            return null;
+        }
+
+        private static String readTag(Reader in) throws IOException
+        {
+            StringBuilder tag = new StringBuilder("<");
+            char quote = 0;
+            int c;
+            while ((c = in.read()) != -1) {
+                tag.append((char) c);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '\'' || c == '"') {
+                    quote = (char) c;
+                } else if (c == '>') {
+                    break;
+                }
+            }
+            return tag.toString();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.notification.NotificationTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getTransports(), which builds an XMPPMucNotificationTransport and runs variable substitution on the room,
+ * password and nickname for every notification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMPPMucTransportBenchmark
+{
+    private XMPPMucNotificationRecipient recipient;
+
+    @Setup
+    public void setUp()
+    {
+        recipient = new XMPPMucNotificationRecipient();
+        recipient.setCustomVariableContext(XMPPMucPluginHarness.customVariableContext());
+        recipient.init(XMPPMucPluginHarness.recipientConfig("builds@conference.example.com"));
+    }
+
+    @Benchmark
+    public List<NotificationTransport> getTransports()
+    {
+        return recipient.getTransports();
+    }
+}
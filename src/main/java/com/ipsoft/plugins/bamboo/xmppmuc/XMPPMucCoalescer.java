@@ -0,0 +1,223 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges bursts of notifications for the same room into one multi-line message before they reach the delivery queue.
+ * A batch is flushed once no new message arrived for the coalescing window, once it is maxDelay old, or once it
+ * holds maxBatch messages, whichever comes first. Recipients without a window bypass this entirely.
+ */
+public class XMPPMucCoalescer implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucCoalescer.class);
+
+    private final XMPPMucDeliveryQueue deliveryQueue;
+    private final ConcurrentMap<BatchKey, Batch> batches = new ConcurrentHashMap<BatchKey, Batch>();
+    private final ScheduledExecutorService scheduler;
+
+    public XMPPMucCoalescer(XMPPMucDeliveryQueue deliveryQueue)
+    {
+        this.deliveryQueue = deliveryQueue;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "xmppmuc-coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     *
+     * @param message
+     * @param windowMillis quiet period after the last message before the batch is sent, 0 or less sends straight away
+     * @param maxBatch messages after which the batch is sent immediately
+     * @param maxDelayMillis longest a message may wait in a batch
+     */
+    public void submit(XMPPMucMessage message, long windowMillis, int maxBatch, long maxDelayMillis)
+    {
+        if (windowMillis <= 0 || maxBatch <= 1) {
+            deliveryQueue.enqueue(message);
+            return;
+        }
+
+        BatchKey key = new BatchKey(message);
+        while (true) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                Batch created = new Batch(key, message, maxBatch);
+                batch = batches.putIfAbsent(key, created);
+                if (batch == null) {
+                    batch = created;
+                }
+            }
+            if (batch.add(message, windowMillis, maxDelayMillis)) {
+                return;
+            }
+            //Batch was flushed while we were adding, start a new one
+        }
+    }
+
+    private void flush(Batch batch)
+    {
+        XMPPMucMessage merged = batch.close();
+        if (merged != null) {
+            batches.remove(batch.key, batch);
+            deliveryQueue.enqueue(merged);
+        }
+    }
+
+    /**
+     * Sends every pending batch, called when the plugin is disabled or uninstalled.
+     */
+    public void destroy()
+    {
+        scheduler.shutdownNow();
+        for (Batch batch : batches.values()) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * Messages are only merged when they would have been posted by the same occupant into the same room, through the same server.
+     */
+    private static final class BatchKey
+    {
+        private final String room;
+        private final String roompw;
+        private final String nickname;
+        private final String server;
+
+        BatchKey(XMPPMucMessage message)
+        {
+            this.room = message.getRoom();
+            this.roompw = message.getRoompw();
+            this.nickname = message.getNickname();
+            this.server = message.getServer();
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey that = (BatchKey) o;
+            return (room != null ? room.equals(that.room) : that.room == null)
+                    && (roompw != null ? roompw.equals(that.roompw) : that.roompw == null)
+                    && (nickname != null ? nickname.equals(that.nickname) : that.nickname == null)
+                    && (server != null ? server.equals(that.server) : that.server == null);
+        }
+
+        public int hashCode() {
+            int result = room != null ? room.hashCode() : 0;
+            result = 31 * result + (roompw != null ? roompw.hashCode() : 0);
+            result = 31 * result + (nickname != null ? nickname.hashCode() : 0);
+            result = 31 * result + (server != null ? server.hashCode() : 0);
+            return result;
+        }
+    }
+
+    /**
+     * Pending lines for one room, guarded by its own monitor.
+     */
+    private class Batch implements Runnable
+    {
+        private final BatchKey key;
+        private final XMPPMucMessage first;
+        private final int maxBatch;
+        private final long createdAt = System.currentTimeMillis();
+        private final List<String> lines = new ArrayList<String>();
+        private final List<String> xhtmlLines = new ArrayList<String>();
+        private XMPPMucPriority priority = XMPPMucPriority.LOW;
+        private ScheduledFuture<?> pending;
+        private boolean closed;
+
+        Batch(BatchKey key, XMPPMucMessage first, int maxBatch)
+        {
+            this.key = key;
+            this.first = first;
+            this.maxBatch = maxBatch;
+        }
+
+        /**
+         * @return false if the batch was already flushed and the caller must start a new one
+         */
+        synchronized boolean add(XMPPMucMessage message, long windowMillis, long maxDelayMillis)
+        {
+            if (closed) {
+                return false;
+            }
+            lines.add(message.getBody());
+            xhtmlLines.add(message.getXhtmlBody());
+            if (message.getPriority().compareTo(priority) < 0) {
+                priority = message.getPriority();
+            }
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            if (lines.size() >= maxBatch) {
+                pending = scheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+            } else {
+                long deadline = maxDelayMillis > 0 ? createdAt + maxDelayMillis : Long.MAX_VALUE;
+                long delay = Math.min(windowMillis, deadline - System.currentTimeMillis());
+                pending = scheduler.schedule(this, Math.max(0, delay), TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+
+        /**
+         * @return the merged message, or null if another thread flushed it first
+         */
+        synchronized XMPPMucMessage close()
+        {
+            if (closed) {
+                return null;
+            }
+            closed = true;
+            if (lines.size() == 1) {
+                return first;
+            }
+            StringBuilder body = new StringBuilder();
+            for (String line : lines) {
+                if (body.length() > 0) {
+                    body.append('\n');
+                }
+                body.append(line);
+            }
+            //Formatting is kept only if every line has it, a mixed batch goes out as plain text
+            StringBuilder xhtml = new StringBuilder();
+            for (String line : xhtmlLines) {
+                if (line == null) {
+                    xhtml = null;
+                    break;
+                }
+                if (xhtml.length() > 0) {
+                    xhtml.append("<br/>");
+                }
+                xhtml.append(line);
+            }
+            log.debug("XMPP MUC coalesced " + lines.size() + " notifications for " + key.room);
+            //The merged message goes in the most urgent lane of its parts
+            return first.withBody(body.toString(), xhtml != null ? xhtml.toString() : null).withPriority(priority);
+        }
+
+        public void run()
+        {
+            flush(this);
+        }
+    }
+}
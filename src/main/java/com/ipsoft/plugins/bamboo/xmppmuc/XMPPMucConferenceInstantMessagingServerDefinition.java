@@ -42,4 +42,15 @@ public class XMPPMucConferenceInstantMessagingServerDefinition extends InstantMe
         }
         return this.getUsername() != null ? this.getUsername().equals(that.getUsername()) : that.getUsername() == null;
     }
+
+    public int hashCode() {
+        int result = this.getHost() != null ? this.getHost().hashCode() : 0;
+        result = 31 * result + (this.name != null ? this.name.hashCode() : 0);
+        result = 31 * result + (this.getPort() != null ? this.getPort().hashCode() : 0);
+        result = 31 * result + (this.getUsername() != null ? this.getUsername().hashCode() : 0);
+        result = 31 * result + (this.getResource() != null ? this.getResource().hashCode() : 0);
+        result = 31 * result + (this.isEnforceLegacySsl() ? 1 : 0);
+        result = 31 * result + (this.isSecureConnectionRequired() ? 1 : 0);
+        return result;
+    }
 }
@@ -0,0 +1,147 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
+import org.jivesoftware.smack.java7.Java7SmackInitializer;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Builds immutable XMPPTCPConnectionConfigurations and keeps them per IM server.
+ * Smack is initialized once for the lifetime of the plugin and one accept-all SSLContext and hostname verifier are
+ * shared by every configuration; a configuration is only rebuilt when the server definition stops being equal.
+ */
+public class XMPPMucConnectionConfigurationFactory
+{
+    private static final Logger log = Logger.getLogger(XMPPMucConnectionConfigurationFactory.class);
+
+    private static final Integer DEFAULT_TLS_PORT = 5222;
+    private static final Integer DEFAULT_SSL_PORT = 5223;
+
+    private static final HostnameVerifier ACCEPT_ALL_HOSTNAMES = new HostnameVerifier() {
+        public boolean verify(String arg0, SSLSession arg1) {
+            return true;
+        }
+    };
+
+    private final ConcurrentMap<Long, BuiltConfiguration> configurations = new ConcurrentHashMap<Long, BuiltConfiguration>();
+    private final SSLContext sslContext;
+
+    public XMPPMucConnectionConfigurationFactory()
+    {
+        new Java7SmackInitializer().initialize();
+        this.sslContext = createAcceptAllSslContext();
+    }
+
+    /**
+     *
+     * @param server
+     * @return XMPPTCPConnectionConfiguration
+     * Returns the cached configuration for the server, building it first if the server is new or its definition changed.
+     */
+    public XMPPTCPConnectionConfiguration getConfiguration(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        Long key = server.getId();
+        BuiltConfiguration built = configurations.get(key);
+        if (built == null || !built.server.equals(server)) {
+            built = new BuiltConfiguration(server, build(server));
+            configurations.put(key, built);
+        }
+        return built.configuration;
+    }
+
+    private XMPPTCPConnectionConfiguration build(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        //Pull vars from XMPPMucConferenceInstantMessagingServerDefinition
+        String host = server.getHost();
+        String serviceName = "talk.google.com".equals(host) ? "gmail.com" : host;
+        Integer port = server.getPort();
+        String username = server.getUsername();
+        String password = server.getPassword();
+        log.info("Building XMPP configuration for " + host + " at " + port + " With user: " + username);
+
+        //Connection Builder
+        XMPPTCPConnectionConfiguration.Builder conf = XMPPTCPConnectionConfiguration.builder();
+        conf.setServiceName(serviceName);
+        conf.setHost(host);
+        if (port != null) {
+            conf.setPort(port);
+        }
+        conf.setUsernameAndPassword(username, password);
+        conf.setCompressionEnabled(true);
+        conf.setConnectTimeout(60);
+
+        //Disables Presence so we don't get blasted with XMPPExceptions
+        conf.setSendPresence(false);
+
+        /**
+         * This will attempt to accept all certs
+         * This will however not prevent jdk.security from blocking md5 and keys below <1024bits.
+         */
+        if (sslContext != null) {
+            conf.setCustomSSLContext(sslContext);
+        }
+
+        //Require secure connection
+        if (server.isSecureConnectionRequired()){
+            if (port == null) {
+                port = server.isEnforceLegacySsl() ? DEFAULT_SSL_PORT : DEFAULT_TLS_PORT;
+            }
+            conf.setPort(port);
+            conf.setSecurityMode(SecurityMode.required);
+        } else {
+            conf.setSecurityMode(SecurityMode.disabled);
+        }
+        conf.setHostnameVerifier(ACCEPT_ALL_HOSTNAMES);
+
+        return conf.build();
+    }
+
+    private static SSLContext createAcceptAllSslContext()
+    {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] { new X509TrustManager() {
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            } }, new SecureRandom());
+            return context;
+        } catch (NoSuchAlgorithmException e){
+            log.trace(e);
+        } catch (KeyManagementException e){
+            log.trace(e);
+        }
+        return null;
+    }
+
+    private static final class BuiltConfiguration
+    {
+        private final XMPPMucConferenceInstantMessagingServerDefinition server;
+        private final XMPPTCPConnectionConfiguration configuration;
+
+        BuiltConfiguration(XMPPMucConferenceInstantMessagingServerDefinition server, XMPPTCPConnectionConfiguration configuration)
+        {
+            this.server = server;
+            this.configuration = configuration;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.jivesoftware.smack.AbstractConnectionListener;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smackx.ping.PingFailedListener;
+import org.jivesoftware.smackx.ping.PingManager;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plugin-wide pool of authenticated XMPP connections, one per IM server definition.
+ * Connections are kept open between notifications and handed out to any number of transports concurrently,
+ * Smack connections are thread safe for sending stanzas. A connection that has dropped is rebuilt on next use, and
+ * one left idle for -Dxmppmuc.session.idlePingSeconds is pinged first, since a NAT or firewall may have dropped it
+ * without either end noticing. The ping runs outside the connection's monitor and is shared by every sender that finds
+ * the connection idle meanwhile.
+ *
+ * With -Dxmppmuc.session.longLived=true connections are kept alive with XEP-0199 pings, negotiate XEP-0198 stream
+ * management and are reconnected in the background as soon as they drop. A reconnect first tries to resume the
+ * stream, which keeps the session and its rooms without logging in again, and failed attempts back off exponentially
+ * with jitter so a restarting server is not hit by every Bamboo instance at once.
+ */
+public class XMPPMucConnectionManager implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucConnectionManager.class);
+
+    private final XMPPMucConnectionConfigurationFactory configurationFactory;
+    private final XMPPMucMetrics metrics;
+    private final ConcurrentMap<XMPPMucConferenceInstantMessagingServerDefinition, PooledConnection> connections =
+            new ConcurrentHashMap<XMPPMucConferenceInstantMessagingServerDefinition, PooledConnection>();
+    private final ScheduledExecutorService reconnector;
+    private final Random jitter = new Random();
+
+    public XMPPMucConnectionManager(XMPPMucConnectionConfigurationFactory configurationFactory, XMPPMucMetrics metrics)
+    {
+        this.configurationFactory = configurationFactory;
+        this.metrics = metrics;
+        this.reconnector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "xmppmuc-reconnect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     *
+     * @param server
+     * @return XMPPTCPConnection
+     * @throws SmackException
+     * @throws IOException
+     * @throws XMPPException
+     * Returns the pooled, authenticated connection for the server, connecting and logging in first if required.
+     * Callers for the same server block on each other only while a connection is being (re)established.
+     * A long-lived session that is backing off after failed reconnects fails fast with NotConnectedException.
+     */
+    public XMPPTCPConnection getConnection(XMPPMucConferenceInstantMessagingServerDefinition server) throws SmackException, IOException, XMPPException
+    {
+        while (true) {
+            PooledConnection pooled = connections.get(server);
+            if (pooled == null) {
+                PooledConnection created = new PooledConnection(server);
+                pooled = connections.putIfAbsent(server, created);
+                if (pooled == null) {
+                    pooled = created;
+                }
+            }
+            XMPPTCPConnection connection = pooled.get();
+            if (connection != null) {
+                return connection;
+            }
+            //Invalidated while we looked it up, take or create its replacement
+            connections.remove(server, pooled);
+        }
+    }
+
+    /**
+     *
+     * @param server
+     * Drops the pooled connection for the server so the next caller reconnects.
+     * Used by transports when a send fails in a way that leaves the session in doubt.
+     */
+    public void invalidate(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        PooledConnection pooled = connections.remove(server);
+        if (pooled != null) {
+            pooled.retire();
+        }
+    }
+
+    /**
+     *
+     * @param server
+     * @return true if the session was kept for resumption, false if it was invalidated
+     * Reports that the server's connection stopped answering. A long-lived session is shut down without closing its
+     * stream, so it stays resumable, and is reconnected in the background; otherwise this is invalidate().
+     */
+    public boolean connectionFailed(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        PooledConnection pooled = connections.get(server);
+        if (pooled == null || !XMPPMucSettings.isLongLivedSession()) {
+            invalidate(server);
+            return false;
+        }
+        pooled.lost(null);
+        return true;
+    }
+
+    /**
+     * Disconnects every pooled connection, called when the plugin is disabled or uninstalled.
+     */
+    public void destroy()
+    {
+        reconnector.shutdownNow();
+        for (XMPPMucConferenceInstantMessagingServerDefinition server : connections.keySet()) {
+            invalidate(server);
+        }
+    }
+
+    /**
+     *
+     * @param failures
+     * @return milliseconds to wait before the next attempt: base * 2^failures capped at the maximum, the upper half of
+     * which is random so reconnects from many clients spread out
+     */
+    long backoffMillis(int failures)
+    {
+        long base = Math.max(1, XMPPMucSettings.getReconnectBaseMillis());
+        long ceiling = Math.min(XMPPMucSettings.getReconnectMaxMillis(), base << Math.min(failures, 20));
+        long half = Math.max(1, ceiling / 2);
+        synchronized (jitter) {
+            return half + (long) (jitter.nextDouble() * half);
+        }
+    }
+
+    /**
+     * Holds the connection for one server definition, guarding (re)connects with its own monitor.
+     */
+    private class PooledConnection
+    {
+        private final XMPPMucConferenceInstantMessagingServerDefinition server;
+        private final AtomicBoolean reconnectPending = new AtomicBoolean();
+        private volatile XMPPTCPConnection connection;
+        private int failures;
+        private volatile long nextAttemptAt;
+        private volatile boolean retired;
+        private long lastUsed;
+        private IdlePing pinging;
+
+        PooledConnection(XMPPMucConferenceInstantMessagingServerDefinition server)
+        {
+            this.server = server;
+        }
+
+        /**
+         * Returns null once retired, so a caller that looked this entry up before invalidate() removed it does not
+         * open a connection nobody would ever close.
+         */
+        XMPPTCPConnection get() throws SmackException, IOException, XMPPException
+        {
+            while (true) {
+                IdlePing ping;
+                synchronized (this) {
+                    if (retired) {
+                        return null;
+                    }
+                    if (connection == null || !connection.isConnected() || !connection.isAuthenticated()) {
+                        return reconnect();
+                    }
+                    if (XMPPMucSettings.isLongLivedSession()) {
+                        return connection;
+                    }
+                    ping = idlePing();
+                    if (ping == null) {
+                        return connection;
+                    }
+                }
+                //Outside the monitor, so one stale connection does not hold every sender for the server for a whole
+                //ping timeout; they all wait on the same ping, then look again at what it left behind
+                ping.await();
+            }
+        }
+
+        /**
+         * Called holding the monitor.
+         */
+        private XMPPTCPConnection reconnect() throws SmackException, IOException, XMPPException
+        {
+            boolean longLived = XMPPMucSettings.isLongLivedSession();
+            if (longLived && System.currentTimeMillis() < nextAttemptAt) {
+                throw new SmackException.NotConnectedException();
+            }
+
+            boolean connected = false;
+            try {
+                if (!longLived || connection == null || !connection.isSmResumptionPossible() || !resume()) {
+                    close();
+                    connection = open(longLived);
+                }
+                connected = true;
+                return connection;
+            } finally {
+                if (connected) {
+                    failures = 0;
+                    nextAttemptAt = 0;
+                    lastUsed = System.currentTimeMillis();
+                } else if (longLived) {
+                    nextAttemptAt = System.currentTimeMillis() + backoffMillis(failures++);
+                }
+            }
+        }
+
+        /**
+         * A default session has no keep-alive, so after sitting idle its connection is pinged before it is handed out.
+         * Returns null when the connection has been used recently, otherwise the ping to wait for, which is shared with
+         * every caller that finds the connection idle until it is answered. Called holding the monitor.
+         */
+        private IdlePing idlePing()
+        {
+            long now = System.currentTimeMillis();
+            long idle = now - lastUsed;
+            int idlePingSeconds = XMPPMucSettings.getIdlePingSeconds();
+            if (idlePingSeconds <= 0 || idle < TimeUnit.SECONDS.toMillis(idlePingSeconds)) {
+                lastUsed = now;
+                return null;
+            }
+            if (pinging == null || pinging.target != connection) {
+                pinging = new IdlePing(connection, idle);
+            }
+            return pinging;
+        }
+
+        /**
+         * Reconnects the dropped connection and asks the server to resume its stream.
+         * Returns false when the server no longer knows the stream; Smack has then bound a new session on the same
+         * connection without our rooms, so the caller replaces it and the rooms are rejoined on the new connection.
+         */
+        private boolean resume() throws SmackException, IOException, XMPPException
+        {
+            log.info("XMPP MUC resuming stream to " + server.getHost());
+            connectAndLogin(connection, true);
+            if (connection.streamWasResumed()) {
+                log.info("XMPP MUC stream to " + server.getHost() + " resumed");
+                return true;
+            }
+            log.info("XMPP MUC stream to " + server.getHost() + " could not be resumed, starting a new session");
+            return false;
+        }
+
+        private XMPPTCPConnection open(boolean longLived) throws SmackException, IOException, XMPPException
+        {
+            log.info("Creating new XMPP Connection");
+            XMPPTCPConnection created = new XMPPTCPConnection(configurationFactory.getConfiguration(server));
+            if (longLived) {
+                created.setUseStreamManagement(true);
+                created.setUseStreamManagementResumption(true);
+                created.setPreferredResumptionTime(XMPPMucSettings.getResumptionSeconds());
+            }
+            connectAndLogin(created, false);
+            if (longLived) {
+                keepAlive(created);
+            }
+            return created;
+        }
+
+        /**
+         * Connects and logs in, timing each step. On failure a resumable connection is shut down without closing
+         * its stream so a later attempt can still resume it, anything else is disconnected.
+         */
+        private void connectAndLogin(XMPPTCPConnection target, boolean resumable) throws SmackException, IOException, XMPPException
+        {
+            XMPPMucMetrics.Operation operation = XMPPMucMetrics.Operation.CONNECT;
+            long start = metrics.start();
+            boolean loggedIn = false;
+            try {
+                target.connect();
+                metrics.success(operation, server, null, start);
+                operation = XMPPMucMetrics.Operation.LOGIN;
+                start = metrics.start();
+                target.login();
+                metrics.success(operation, server, null, start);
+                loggedIn = true;
+            } catch (SmackException e) {
+                metrics.failure(operation, server, null, start, e);
+                throw e;
+            } catch (IOException e) {
+                metrics.failure(operation, server, null, start, e);
+                throw e;
+            } catch (XMPPException e) {
+                metrics.failure(operation, server, null, start, e);
+                throw e;
+            } finally {
+                if (!loggedIn) {
+                    if (resumable) {
+                        target.instantShutdown();
+                    } else {
+                        target.disconnect();
+                    }
+                }
+            }
+        }
+
+        private void keepAlive(final XMPPTCPConnection target)
+        {
+            PingManager pingManager = PingManager.getInstanceFor(target);
+            pingManager.setPingInterval(XMPPMucSettings.getPingIntervalSeconds());
+            pingManager.registerPingFailedListener(new PingFailedListener() {
+                public void pingFailed() {
+                    log.info("XMPP MUC ping to " + server.getHost() + " failed");
+                    lost(target);
+                }
+            });
+            target.addConnectionListener(new AbstractConnectionListener() {
+                public void connectionClosedOnError(Exception e) {
+                    log.info("XMPP MUC connection to " + server.getHost() + " closed on error");
+                    log.trace(e.getStackTrace());
+                    lost(target);
+                }
+            });
+        }
+
+        /**
+         * The given connection, or the pooled one when null, is dead: drop its socket, keeping the stream resumable,
+         * and reconnect in the background once the backoff allows.
+         */
+        void lost(XMPPTCPConnection dropped)
+        {
+            XMPPTCPConnection current = dropped != null ? dropped : connection;
+            if (current != null && current.isConnected()) {
+                current.instantShutdown();
+            }
+            scheduleReconnect();
+        }
+
+        private void scheduleReconnect()
+        {
+            if (retired || !reconnectPending.compareAndSet(false, true)) {
+                return;
+            }
+            long delay = Math.max(0, nextAttemptAt - System.currentTimeMillis());
+            try {
+                reconnector.schedule(new Runnable() {
+                    public void run() {
+                        reconnectPending.set(false);
+                        if (retired) {
+                            return;
+                        }
+                        try {
+                            get();
+                        } catch (Exception e) {
+                            log.info("XMPP MUC reconnect to " + server.getHost() + " failed, retrying in "
+                                    + Math.max(0, nextAttemptAt - System.currentTimeMillis()) + "ms");
+                            log.trace(e.getStackTrace());
+                            scheduleReconnect();
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //The plugin is shutting down
+                reconnectPending.set(false);
+            }
+        }
+
+        /**
+         * One ping of an idle connection, run by the first caller to wait for it. When it goes unanswered the
+         * connection is shut down, so callers replace it and rooms are rejoined on the new one, instead of the message
+         * vanishing into a socket nobody is listening on.
+         */
+        private final class IdlePing implements Callable<Boolean>
+        {
+            private final XMPPTCPConnection target;
+            private final long idle;
+            private final FutureTask<Boolean> result = new FutureTask<Boolean>(this);
+
+            IdlePing(XMPPTCPConnection target, long idle)
+            {
+                this.target = target;
+                this.idle = idle;
+            }
+
+            public Boolean call()
+            {
+                boolean answered = false;
+                try {
+                    answered = PingManager.getInstanceFor(target).pingMyServer(false);
+                } catch (SmackException.NotConnectedException e) {
+                    log.trace(e.getStackTrace());
+                } finally {
+                    if (!answered) {
+                        log.info("XMPP MUC connection to " + server.getHost() + " idle for "
+                                + TimeUnit.MILLISECONDS.toSeconds(idle) + "s did not answer a ping, reconnecting");
+                        target.instantShutdown();
+                    }
+                }
+                return answered;
+            }
+
+            /**
+             * Runs the ping unless another caller already is, and waits for its answer.
+             */
+            void await() throws SmackException.NotConnectedException
+            {
+                result.run();
+                boolean answered = false;
+                try {
+                    answered = result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SmackException.NotConnectedException();
+                } catch (ExecutionException e) {
+                    //call() has already shut the connection down
+                    log.trace(e.getCause().getStackTrace());
+                } finally {
+                    synchronized (PooledConnection.this) {
+                        if (pinging == this) {
+                            pinging = null;
+                            if (answered) {
+                                lastUsed = System.currentTimeMillis();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        synchronized void retire()
+        {
+            //Under the monitor, so a connect in progress finishes first and is then closed here
+            retired = true;
+            close();
+        }
+
+        synchronized void close()
+        {
+            if (connection != null) {
+                long start = metrics.start();
+                connection.disconnect();
+                metrics.success(XMPPMucMetrics.Operation.DISCONNECT, server, null, start);
+                connection = null;
+                log.info("XMPP MUC Successfully disconnected");
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded hand-off between Bamboo's notification thread and a small pool of delivery workers.
+ * Each worker drains its own stripe of the queue and rooms are assigned to stripes by hash, so messages to one room
+ * of the same priority are still delivered in the order they were enqueued. When a lane is full the configured
+ * overflow policy applies; a message it pushes out of the queue is journalled in the outbox, not lost.
+ *
+ * A stripe is split in one bounded lane per XMPPMucPriority, drained by weighted round robin
+ * (-Dxmppmuc.queue.weights): a failure overtakes queued successes, even for the same room, and a flood of low priority
+ * messages can neither fill the urgent lane nor starve itself.
+ *
+ * A room over its XMPPMucRateLimiter rate does not hold up its stripe: the worker parks the room's messages until the
+ * limiter lets them through and keeps delivering to the other rooms meanwhile.
+ */
+public class XMPPMucDeliveryQueue implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucDeliveryQueue.class);
+
+    //How long destroy() waits for workers to finish the send in progress, Smack may swallow the interrupt
+    private static final long SHUTDOWN_MILLIS = 30000;
+
+    /**
+     * What enqueue does when the lane for a room and priority is full.
+     */
+    public enum OverflowPolicy
+    {
+        /** Wait for a worker to make room, the caller is blocked */
+        BLOCK,
+        /** Move the longest-waiting message in the lane to the outbox and take the new one */
+        DROP_OLDEST,
+        /** Move the new message to the outbox */
+        DROP_NEWEST
+    }
+
+    private final XMPPMucMessageSender sender;
+    private final XMPPMucOutbox outbox;
+    private final OverflowPolicy overflowPolicy;
+    private final Worker[] workers;
+    private final int[] weights;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean stopped;
+
+    public XMPPMucDeliveryQueue(XMPPMucMessageSender sender, XMPPMucOutbox outbox, XMPPMucMetrics metrics)
+    {
+        this.sender = sender;
+        this.outbox = outbox;
+        this.overflowPolicy = XMPPMucSettings.getQueueOverflowPolicy();
+        this.weights = XMPPMucSettings.getQueueWeights();
+
+        int workerCount = Math.max(1, XMPPMucSettings.getQueueWorkers());
+        int stripeCapacity = Math.max(1, (XMPPMucSettings.getQueueCapacity() + workerCount - 1) / workerCount);
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker("xmppmuc-delivery-" + i, stripeCapacity);
+            workers[i].start();
+        }
+        log.info("XMPP MUC delivery queue started with " + workerCount + " workers, capacity " + stripeCapacity * workerCount + " per priority, overflow " + overflowPolicy);
+        metrics.setDeliveryQueue(this);
+    }
+
+    /**
+     *
+     * @param message
+     * @return false if the overflow policy moved the message to the outbox instead
+     * Hands the message to its priority's lane of the worker owning its room. Returns immediately unless the policy
+     * is BLOCK and the lane is full.
+     */
+    public boolean enqueue(XMPPMucMessage message)
+    {
+        Worker worker = workers[stripeFor(message.getRoom())];
+        BlockingDeque<XMPPMucMessage> lane = worker.lanes[message.getPriority().ordinal()];
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    lane.putLast(message);
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return drop(message);
+                }
+            case DROP_OLDEST:
+                while (!lane.offerLast(message)) {
+                    XMPPMucMessage oldest = lane.pollFirst();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                break;
+            default:
+                if (!lane.offerLast(message)) {
+                    return drop(message);
+                }
+        }
+        worker.available.release();
+        return true;
+    }
+
+    /**
+     * Journals a message the queue has no room for; it is replayed behind the room's other outbox records, and the
+     * room's messages still queued follow it there.
+     */
+    private boolean drop(XMPPMucMessage message)
+    {
+        dropped.incrementAndGet();
+        log.warn("XMPP MUC delivery queue full, notification for " + message.getRoom() + " moved to the outbox");
+        outbox.append(message);
+        return false;
+    }
+
+    private int stripeFor(String room)
+    {
+        int hash = room != null ? room.hashCode() : 0;
+        return (hash & Integer.MAX_VALUE) % workers.length;
+    }
+
+    /**
+     * @return messages waiting across all stripes, parked ones included
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (Worker worker : workers) {
+            for (BlockingDeque<XMPPMucMessage> lane : worker.lanes) {
+                depth += lane.size();
+            }
+            depth += worker.parkedCount.get();
+        }
+        return depth;
+    }
+
+    /**
+     * @return messages waiting across all stripes, per priority
+     */
+    public Map<String, Integer> getQueueDepthByPriority()
+    {
+        Map<String, Integer> depths = new TreeMap<String, Integer>();
+        for (XMPPMucPriority priority : XMPPMucPriority.values()) {
+            int depth = 0;
+            for (Worker worker : workers) {
+                depth += worker.lanes[priority.ordinal()].size();
+            }
+            depths.put(priority.name().toLowerCase(), depth);
+        }
+        return depths;
+    }
+
+    public int getWorkerCount()
+    {
+        return workers.length;
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    /**
+     * Stops the workers, messages still queued are journalled in the outbox and delivered after the next start.
+     * Returns once every worker has finished, so none appends to the outbox after it is destroyed.
+     */
+    public void destroy()
+    {
+        stopped = true;
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_MILLIS;
+        for (Worker worker : workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (worker.isAlive()) {
+                log.warn("XMPP MUC delivery worker " + worker.getName() + " did not stop within " + SHUTDOWN_MILLIS + "ms");
+            }
+        }
+
+        List<XMPPMucMessage> remaining = new ArrayList<XMPPMucMessage>();
+        for (Worker worker : workers) {
+            //Only the worker touches its parked rooms, they can be read once it is gone
+            if (!worker.isAlive()) {
+                for (Parked room : worker.parked.values()) {
+                    remaining.addAll(room.messages);
+                }
+            }
+            for (BlockingDeque<XMPPMucMessage> lane : worker.lanes) {
+                lane.drainTo(remaining);
+            }
+        }
+        for (XMPPMucMessage message : remaining) {
+            outbox.append(message);
+        }
+        log.info("XMPP MUC delivery queue stopped, " + remaining.size() + " queued notifications kept in the outbox");
+    }
+
+    /**
+     * Single delivery thread draining one stripe, lane by lane.
+     */
+    private class Worker extends Thread
+    {
+        private final BlockingDeque<XMPPMucMessage>[] lanes;
+        //One permit per enqueued message; a message moved out by DROP_OLDEST leaves a spare one, which only costs a wakeup
+        private final Semaphore available = new Semaphore(0);
+        private final int[] credits = new int[XMPPMucPriority.values().length];
+        //Rooms the rate limiter is holding back, touched by this worker only
+        private final Map<String, Parked> parked = new HashMap<String, Parked>();
+        private final AtomicInteger parkedCount = new AtomicInteger();
+
+        @SuppressWarnings("unchecked")
+        Worker(String name, int capacity)
+        {
+            super(name);
+            setDaemon(true);
+            this.lanes = new BlockingDeque[XMPPMucPriority.values().length];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new LinkedBlockingDeque<XMPPMucMessage>(capacity);
+            }
+        }
+
+        public void run()
+        {
+            while (!stopped && !isInterrupted()) {
+                boolean enqueued;
+                try {
+                    enqueued = awaitWork();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retryParked();
+                if (!enqueued) {
+                    continue;
+                }
+                XMPPMucMessage message = next();
+                if (message == null) {
+                    continue;
+                }
+                Parked room = parked.get(message.getRoom());
+                if (room != null) {
+                    //Behind the room's messages waiting for the rate limiter
+                    room.add(message);
+                    parkedCount.incrementAndGet();
+                } else {
+                    long waitNanos = deliver(message);
+                    if (waitNanos > 0) {
+                        room = new Parked();
+                        room.add(message);
+                        room.dueAt = System.nanoTime() + waitNanos;
+                        parked.put(message.getRoom(), room);
+                        parkedCount.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return true once a message was enqueued, false if a parked room came due first
+         */
+        private boolean awaitWork() throws InterruptedException
+        {
+            if (parked.isEmpty()) {
+                available.acquire();
+                return true;
+            }
+            long dueAt = Long.MAX_VALUE;
+            long now = System.nanoTime();
+            for (Parked room : parked.values()) {
+                dueAt = Math.min(dueAt, room.dueAt - now);
+            }
+            return available.tryAcquire(Math.max(0, dueAt), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Sends what it can of every parked room that came due, in order, parking the rest again for as long as the
+         * rate limiter asks.
+         */
+        private void retryParked()
+        {
+            long now = System.nanoTime();
+            for (Iterator<Parked> it = parked.values().iterator(); it.hasNext() && !stopped; ) {
+                Parked room = it.next();
+                if (room.dueAt - now > 0) {
+                    continue;
+                }
+                XMPPMucMessage message;
+                while ((message = room.messages.peekFirst()) != null) {
+                    long waitNanos = deliver(message);
+                    if (waitNanos > 0) {
+                        room.dueAt = System.nanoTime() + waitNanos;
+                        break;
+                    }
+                    room.messages.pollFirst();
+                    parkedCount.decrementAndGet();
+                }
+                if (room.messages.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * @return the nanoseconds the rate limiter holds the message back for, else 0 once it is sent or journalled
+         */
+        private long deliver(XMPPMucMessage message)
+        {
+            try {
+                //Behind older messages for the room in the outbox, or no server reachable: journal it
+                if (outbox.hasPending(message.getRoom())) {
+                    outbox.append(message);
+                    return 0;
+                }
+                long result = sender.trySend(message);
+                if (result == XMPPMucMessageSender.UNREACHABLE) {
+                    outbox.append(message);
+                    return 0;
+                }
+                return result;
+            } catch (RuntimeException e) {
+                log.error("XMPP MUC unexpected error delivering to " + message.getRoom(), e);
+                return 0;
+            }
+        }
+
+        /**
+         * Weighted round robin: each lane may hand out its weight in messages per round, most urgent first; a new
+         * round starts once every lane with messages waiting has used up its credits.
+         *
+         * @return the next message, null if every lane is empty
+         */
+        private XMPPMucMessage next()
+        {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < lanes.length; i++) {
+                    if (credits[i] > 0) {
+                        XMPPMucMessage message = lanes[i].pollFirst();
+                        if (message != null) {
+                            credits[i]--;
+                            return message;
+                        }
+                    }
+                }
+                System.arraycopy(weights, 0, credits, 0, credits.length);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A room's messages held back by the rate limiter, most urgent first and in enqueue order within a priority,
+     * as the lanes would have handed them out.
+     */
+    private static final class Parked
+    {
+        private final LinkedList<XMPPMucMessage> messages = new LinkedList<XMPPMucMessage>();
+        private long dueAt;
+
+        void add(XMPPMucMessage message)
+        {
+            ListIterator<XMPPMucMessage> it = messages.listIterator(messages.size());
+            while (it.hasPrevious()) {
+                if (it.previous().getPriority().ordinal() <= message.getPriority().ordinal()) {
+                    it.next();
+                    break;
+                }
+            }
+            it.add(message);
+        }
+    }
+}
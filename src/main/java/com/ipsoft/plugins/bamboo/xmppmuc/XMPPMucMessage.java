@@ -0,0 +1,185 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.Charset;
+
+/**
+ * What the delivery queue needs to post one notification: the resolved room settings, the message body and which
+ * result it reports. Immutable, so it can be handed between Bamboo's notification thread and the delivery workers freely.
+ *
+ * Holds no Bamboo objects and is kept small, since thousands may wait in the queue during an outage: room settings
+ * and plan keys are interned, so every message to a room shares one copy, and bodies are kept as UTF-8 bytes.
+ */
+public final class XMPPMucMessage
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    private final String room;
+    private final String roompw;
+    private final String nickname;
+    @Nullable
+    private final String server;
+    private final byte[] body;
+    @Nullable
+    private final byte[] xhtmlBody;
+    private final XMPPMucPriority priority;
+    @Nullable
+    private final String planKey;
+    @Nullable
+    private final BuildState state;
+
+    public XMPPMucMessage(String room, String roompw, String nickname, String body)
+    {
+        this(room, roompw, nickname, null, body);
+    }
+
+    /**
+     *
+     * @param room
+     * @param roompw
+     * @param nickname
+     * @param server IM server the recipient is pinned to, by name or account JID, null to let XMPPMucServerRouter pick
+     * @param body
+     */
+    public XMPPMucMessage(String room, String roompw, String nickname, @Nullable String server, String body)
+    {
+        this(room, roompw, nickname, server, body, null);
+    }
+
+    /**
+     *
+     * @param room
+     * @param roompw
+     * @param nickname
+     * @param server
+     * @param body plain text every client can show
+     * @param xhtmlBody XEP-0071 markup for the inside of the XHTML body element, null to send plain text only
+     */
+    public XMPPMucMessage(String room, String roompw, String nickname, @Nullable String server, String body, @Nullable String xhtmlBody)
+    {
+        this(room, roompw, nickname, server, body, xhtmlBody, XMPPMucPriority.NORMAL, null, null);
+    }
+
+    /**
+     *
+     * @param room
+     * @param roompw
+     * @param nickname
+     * @param server
+     * @param body
+     * @param xhtmlBody
+     * @param priority delivery lane in XMPPMucDeliveryQueue
+     * @param planKey plan the notification reports on, null if none
+     * @param state build or deployment state it reports, null if it is not about a result
+     */
+    public XMPPMucMessage(String room, String roompw, String nickname, @Nullable String server, String body, @Nullable String xhtmlBody,
+                          XMPPMucPriority priority, @Nullable String planKey, @Nullable BuildState state)
+    {
+        this(room, roompw, nickname, server, encode(body), encode(xhtmlBody), priority, planKey, state);
+    }
+
+    private XMPPMucMessage(String room, String roompw, String nickname, @Nullable String server, byte[] body, @Nullable byte[] xhtmlBody,
+                           XMPPMucPriority priority, @Nullable String planKey, @Nullable BuildState state)
+    {
+        this.room = intern(room);
+        this.roompw = intern(roompw);
+        this.nickname = intern(nickname);
+        this.server = intern(server);
+        this.body = body;
+        this.xhtmlBody = xhtmlBody;
+        this.priority = priority;
+        this.planKey = intern(planKey);
+        this.state = state;
+    }
+
+    /**
+     * @return a copy of this message with other bodies, everything else unchanged
+     */
+    public XMPPMucMessage withBody(String body, @Nullable String xhtmlBody)
+    {
+        return new XMPPMucMessage(room, roompw, nickname, server, body, xhtmlBody, priority, planKey, state);
+    }
+
+    /**
+     * @return a copy of this message in another delivery lane, everything else unchanged
+     */
+    public XMPPMucMessage withPriority(XMPPMucPriority priority)
+    {
+        return new XMPPMucMessage(room, roompw, nickname, server, body, xhtmlBody, priority, planKey, state);
+    }
+
+    @Nullable
+    private static String intern(@Nullable String value)
+    {
+        return value != null ? STRINGS.intern(value) : null;
+    }
+
+    @Nullable
+    private static byte[] encode(@Nullable String value)
+    {
+        return value != null ? value.getBytes(UTF_8) : null;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getRoompw() {
+        return roompw;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    @Nullable
+    public String getServer() {
+        return server;
+    }
+
+    public String getBody() {
+        return new String(body, UTF_8);
+    }
+
+    @Nullable
+    public String getXhtmlBody() {
+        return xhtmlBody != null ? new String(xhtmlBody, UTF_8) : null;
+    }
+
+    /**
+     * @return the body as UTF-8, shared with this message and not to be modified
+     */
+    byte[] getBodyBytes() {
+        return body;
+    }
+
+    /**
+     * @return the XHTML body as UTF-8, shared with this message and not to be modified
+     */
+    @Nullable
+    byte[] getXhtmlBodyBytes() {
+        return xhtmlBody;
+    }
+
+    public XMPPMucPriority getPriority() {
+        return priority;
+    }
+
+    @Nullable
+    public String getPlanKey() {
+        return planKey;
+    }
+
+    @Nullable
+    public BuildState getState() {
+        return state;
+    }
+}
@@ -0,0 +1,270 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+import org.jivesoftware.smackx.xhtmlim.packet.XHTMLExtension;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts queued messages into their MUC room over the pooled connection.
+ * Runs on the delivery workers of XMPPMucDeliveryQueue, never on Bamboo's notification thread.
+ */
+public class XMPPMucMessageSender
+{
+    private static final Logger log = Logger.getLogger(XMPPMucMessageSender.class);
+
+    /** trySend result: the message was sent, or dropped for good */
+    public static final long DONE = 0;
+    /** trySend result: no IM server could be reached */
+    public static final long UNREACHABLE = -1;
+
+    private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+
+    //Joins refused for good: wrong password, banned, members only, no such room, room creation not allowed
+    private static final Set<XMPPError.Condition> JOIN_REFUSALS = EnumSet.of(
+            XMPPError.Condition.not_authorized,
+            XMPPError.Condition.forbidden,
+            XMPPError.Condition.registration_required,
+            XMPPError.Condition.item_not_found,
+            XMPPError.Condition.not_allowed);
+
+    private final XMPPMucConnectionManager connectionManager;
+    private final XMPPMucRoomManager roomManager;
+    private final XMPPMucServiceDiscoveryCache discoveryCache;
+    private final XMPPMucServerRouter serverRouter;
+    private final XMPPMucRateLimiter rateLimiter;
+    private final XMPPMucMetrics metrics;
+
+    public XMPPMucMessageSender(XMPPMucConnectionManager connectionManager,
+                                XMPPMucRoomManager roomManager,
+                                XMPPMucServiceDiscoveryCache discoveryCache,
+                                XMPPMucServerRouter serverRouter,
+                                XMPPMucRateLimiter rateLimiter,
+                                XMPPMucMetrics metrics)
+    {
+        this.connectionManager = connectionManager;
+        this.roomManager = roomManager;
+        this.discoveryCache = discoveryCache;
+        this.serverRouter = serverRouter;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+    }
+
+    /**
+     *
+     * @param message
+     * @return false if no IM server could be reached, the message is worth keeping in XMPPMucOutbox for later
+     * Sends like trySend, waiting on this thread whenever XMPPMucRateLimiter holds the message back.
+     */
+    public boolean send(XMPPMucMessage message)
+    {
+        while (true) {
+            long result = this.trySend(message);
+            if (result <= 0) {
+                return result == DONE;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param message
+     * @return DONE once the message was sent or dropped for good, UNREACHABLE if no IM server could be reached and the
+     * message is worth keeping in XMPPMucOutbox for later, otherwise the nanoseconds until XMPPMucRateLimiter lets it
+     * through, nothing was sent
+     * First asks XMPPMucServerRouter which IM servers may post to the room, else drops error message
+     * Then tries them in order, failing over to the next one when a server cannot be reached
+     */
+    public long trySend(XMPPMucMessage message)
+    {
+        return this.deliver(message, true);
+    }
+
+    /**
+     *
+     * @param message the room to join and who to join it as, the body is ignored
+     * @return false if no IM server could be reached
+     * Connects to the IM server the room routes to and joins the room exactly as send() would, without posting,
+     * so the first real notification only pays for the send.
+     */
+    public boolean join(XMPPMucMessage message)
+    {
+        return this.deliver(message, false) == DONE;
+    }
+
+    private long deliver(XMPPMucMessage message, boolean post)
+    {
+        List<XMPPMucConferenceInstantMessagingServerDefinition> servers = this.serverRouter.route(message.getRoom(), message.getServer());
+
+        //Do they have their IM server configured?
+        if (servers.isEmpty()) {
+            log.error("IM Server is not configured");
+            return DONE;
+        }
+
+        for (XMPPMucConferenceInstantMessagingServerDefinition server : servers) {
+            long result = this.deliver(server, message, post);
+            if (result != UNREACHABLE) {
+                return result;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                //Shutting down
+                return UNREACHABLE;
+            }
+        }
+        log.info("XMPP MUC no IM server reachable for " + message.getRoom());
+        return UNREACHABLE;
+    }
+
+    /**
+     *
+     * @param server
+     * @param message
+     * @param post false to stop once the room is joined
+     * @return UNREACHABLE if the message was not sent for want of a reachable server and the next one should be tried,
+     * the nanoseconds to wait if the room or account is over its rate, else DONE
+     * Borrows the plugin-wide pooled connection from XMPPMucConnectionManager, which connects only when needed
+     * Then sends the message to the MUC chat, joining it through XMPPMucRoomManager only if not already joined,
+     * if XMPPMucRateLimiter allows it
+     */
+    private long deliver(XMPPMucConferenceInstantMessagingServerDefinition server, XMPPMucMessage message, boolean post)
+    {
+        //Borrow the pooled connection, connecting only if there's none alive
+        XMPPTCPConnection connection;
+        try {
+            connection = this.connectionManager.getConnection(server);
+        } catch (XMPPException e) {
+            log.info("Unable to get XMPP MUC Connection");
+            log.trace(e.getStackTrace());
+            this.serverRouter.markUnreachable(server);
+            return UNREACHABLE;
+        } catch (SmackException e) {
+            log.info("XMPP MUC Connection Error, enable trace to see full error.");
+            log.trace(e.getStackTrace());
+            this.serverRouter.markUnreachable(server);
+            return UNREACHABLE;
+        } catch (IOException e) {
+            log.info("XMPP MUC Connection Error, enable trace to see full error.");
+            log.trace(e.getStackTrace());
+            this.serverRouter.markUnreachable(server);
+            return UNREACHABLE;
+        }
+
+        //Check for a MUC service (cached), then join (once, the membership is cached)/send message
+        try {
+            if (!this.discoveryCache.hasMucService(server, connection, message.getRoom())) {
+                log.info("XMPP MUC no services found, unable to connect to MUC room");
+                return DONE;
+            }
+
+            MultiUserChat muc;
+            try {
+                muc = this.roomManager.getRoom(server, connection, message.getRoom(), message.getRoompw(), message.getNickname());
+            } catch (XMPPException.XMPPErrorException e) {
+                XMPPError.Condition condition = e.getXMPPError() != null ? e.getXMPPError().getCondition() : null;
+                if (condition != null && JOIN_REFUSALS.contains(condition)) {
+                    //Retrying won't help until someone fixes the room or its password
+                    log.warn("XMPP MUC refused to join " + message.getRoom() + " (" + condition + "), message dropped");
+                    log.trace(e.getStackTrace());
+                    return DONE;
+                }
+                //Full or otherwise unavailable for now, keep the message but leave the server to the other rooms
+                log.info("XMPP MUC unable to join " + message.getRoom() + " (" + condition + "), will retry");
+                log.trace(e.getStackTrace());
+                return UNREACHABLE;
+            }
+            if (!post) {
+                this.serverRouter.markReachable(server);
+                return DONE;
+            }
+            //Over the room's or account's rate, the caller retries once it has waited, we stay in the room meanwhile
+            long waitNanos = this.rateLimiter.tryAcquire(server, message.getRoom());
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            long start = this.metrics.start();
+            try {
+                if (message.getXhtmlBody() == null) {
+                    muc.sendMessage(message.getBody());
+                } else if (!XMPPMucMessageTemplate.isWellFormed(message.getXhtmlBody())) {
+                    //Broken markup would cost us the whole stream, the plain body still gets through
+                    log.warn("XMPP MUC XHTML-IM body for " + message.getRoom() + " is not well-formed, sending plain text");
+                    muc.sendMessage(message.getBody());
+                } else {
+                    muc.sendMessage(toXhtmlMessage(muc, message));
+                }
+            } catch (SmackException.NotConnectedException e) {
+                this.metrics.failure(XMPPMucMetrics.Operation.SEND, server, message.getRoom(), start, e);
+                throw e;
+            }
+            this.metrics.success(XMPPMucMetrics.Operation.SEND, server, message.getRoom(), start);
+            this.serverRouter.markReachable(server);
+            return DONE;
+        } catch (SmackException.NoResponseException e){
+            log.info("XMPP MUC no response from " + server.getHost() + " for " + message.getRoom());
+            this.invalidate(server);
+            log.trace(e.getStackTrace());
+        } catch (XMPPException.XMPPErrorException e){
+            log.info("XMPP MUC unknown exception");
+            log.trace(e.getStackTrace());
+            return DONE;
+        } catch (SmackException.NotConnectedException e){
+            log.info("XMPP MUC not connected to " + server.getHost() + " for " + message.getRoom());
+            this.invalidate(server);
+            log.trace(e.getStackTrace());
+        } catch (SmackException e) {
+            log.info("XMPP MUC SmackException while trying to join " + message.getRoom());
+            this.invalidate(server);
+            log.trace(e.getStackTrace());
+        } catch (XMPPException e) {
+            log.info("XMPP MUC exception while trying to join " + message.getRoom());
+            this.invalidate(server);
+            log.trace(e.getStackTrace());
+        }
+        this.serverRouter.markUnreachable(server);
+        return UNREACHABLE;
+    }
+
+    /**
+     *
+     * @param muc
+     * @param message
+     * @return a XEP-0071 message carrying the formatted body, with the plain body for clients without XHTML-IM
+     */
+    private static Message toXhtmlMessage(MultiUserChat muc, XMPPMucMessage message)
+    {
+        Message stanza = muc.createMessage();
+        stanza.setBody(message.getBody());
+        XHTMLExtension xhtml = new XHTMLExtension();
+        xhtml.addBody("<body xmlns='" + XHTML_NAMESPACE + "'>" + message.getXhtmlBody() + "</body>");
+        stanza.addExtension(xhtml);
+        return stanza;
+    }
+
+    private void invalidate(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        //A long-lived session is resumed with its rooms, or replaced by a new connection the rooms are rejoined on
+        if (this.connectionManager.connectionFailed(server)) {
+            return;
+        }
+        this.roomManager.evictServer(server);
+        this.discoveryCache.evict(server);
+    }
+}
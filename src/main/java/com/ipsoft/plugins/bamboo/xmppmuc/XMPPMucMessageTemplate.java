@@ -0,0 +1,375 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.deployments.results.DeploymentResult;
+import com.atlassian.bamboo.plan.cache.ImmutablePlan;
+import com.atlassian.bamboo.resultsummary.ResultsSummary;
+import com.atlassian.bamboo.variable.CustomVariableContext;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recipient's message template, e.g. "[${plan}] ${state} in ${duration}", compiled once into literal text and
+ * variable slots and shared by every transport using the same text. Rendering appends into a builder reused per
+ * thread, so formatting a message allocates little more than the resulting string.
+ *
+ * Variables: content (Bamboo's IM text), plan, planKey, buildNumber, resultKey, state, duration, reason, tests,
+ * environment and version. Anything else, such as ${bamboo.buildNumber}, is left for Bamboo's CustomVariableContext,
+ * which is only asked about the template's own references: values put into the message, commit messages included,
+ * are never substituted, so a "${bamboo.secret}" in them reaches the room as typed.
+ *
+ * An XHTML template is XEP-0071 markup: values, Bamboo's included, are escaped into it, and the plain-text body every
+ * client needs is derived by dropping the tags.
+ */
+public final class XMPPMucMessageTemplate
+{
+    private static final int CACHE_SIZE = 1000;
+    private static final int MAX_REUSED_CAPACITY = 64 * 1024;
+    private static final String VARIABLE_START = "${";
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static final Cache<String, XMPPMucMessageTemplate> COMPILED = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private enum Variable
+    {
+        CONTENT("content"), PLAN("plan"), PLAN_KEY("planKey"), BUILD_NUMBER("buildNumber"), RESULT_KEY("resultKey"),
+        STATE("state"), DURATION("duration"), REASON("reason"), TESTS("tests"), ENVIRONMENT("environment"), VERSION("version");
+
+        private final String name;
+
+        Variable(String name)
+        {
+            this.name = name;
+        }
+
+        @Nullable
+        static Variable named(String name)
+        {
+            for (Variable variable : values()) {
+                if (variable.name.equals(name)) {
+                    return variable;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final String[] literals;
+    private final Variable[] variables;
+
+    private XMPPMucMessageTemplate(String text)
+    {
+        List<String> literalList = new ArrayList<String>();
+        List<Variable> variableList = new ArrayList<Variable>();
+        StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < text.length()) {
+            int start = text.indexOf(VARIABLE_START, position);
+            int end = start < 0 ? -1 : text.indexOf('}', start + VARIABLE_START.length());
+            if (end < 0) {
+                literal.append(text, position, text.length());
+                break;
+            }
+            literal.append(text, position, start);
+            Variable variable = Variable.named(text.substring(start + VARIABLE_START.length(), end).trim());
+            if (variable == null) {
+                //Not ours, kept verbatim for CustomVariableContext
+                literal.append(text, start, end + 1);
+            } else {
+                literalList.add(literal.toString());
+                variableList.add(variable);
+                literal.setLength(0);
+            }
+            position = end + 1;
+        }
+        literalList.add(literal.toString());
+
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        this.variables = variableList.toArray(new Variable[variableList.size()]);
+    }
+
+    /**
+     *
+     * @param text
+     * @return the compiled template, shared with every other caller that passed the same text
+     */
+    public static XMPPMucMessageTemplate compile(String text)
+    {
+        XMPPMucMessageTemplate template = COMPILED.getIfPresent(text);
+        if (template == null) {
+            template = new XMPPMucMessageTemplate(text);
+            COMPILED.put(text, template);
+        }
+        return template;
+    }
+
+    /**
+     *
+     * @param content
+     * @param plan
+     * @param resultsSummary
+     * @param deploymentResult
+     * @param xhtml escape values for XHTML-IM markup
+     * @param customVariableContext resolves any variables the template does not know itself
+     * @return the rendered text
+     */
+    public String render(String content,
+                         @Nullable ImmutablePlan plan,
+                         @Nullable ResultsSummary resultsSummary,
+                         @Nullable DeploymentResult deploymentResult,
+                         boolean xhtml,
+                         CustomVariableContext customVariableContext)
+    {
+        StringBuilder out = builder();
+        for (int i = 0; i < variables.length; i++) {
+            appendLiteral(literals[i], xhtml, customVariableContext, out);
+            String value = valueOf(variables[i], content, plan, resultsSummary, deploymentResult);
+            if (value != null) {
+                if (xhtml) {
+                    escape(value, out);
+                } else {
+                    out.append(value);
+                }
+            }
+        }
+        appendLiteral(literals[literals.length - 1], xhtml, customVariableContext, out);
+        return out.toString();
+    }
+
+    /**
+     *
+     * @return true if the template, with its variables left out, is well-formed XHTML-IM markup
+     */
+    public boolean isWellFormedXhtml()
+    {
+        StringBuilder markup = new StringBuilder();
+        for (String literal : literals) {
+            markup.append(literal);
+        }
+        return isWellFormed(markup.toString());
+    }
+
+    /**
+     *
+     * @param xhtml
+     * @return true if the markup parses as the content of an XHTML-IM body element
+     */
+    public static boolean isWellFormed(String xhtml)
+    {
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader("<body>" + xhtml + "</body>"));
+            try {
+                while (reader.hasNext()) {
+                    reader.next();
+                }
+            } finally {
+                reader.close();
+            }
+            return true;
+        } catch (XMLStreamException e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param xhtml
+     * @return the text of XHTML-IM markup: tags dropped, line breaks and paragraphs kept as new lines, entities decoded
+     */
+    public static String toPlainText(String xhtml)
+    {
+        StringBuilder out = builder();
+        int length = xhtml.length();
+        for (int i = 0; i < length; i++) {
+            char c = xhtml.charAt(i);
+            if (c == '<') {
+                int close = xhtml.indexOf('>', i);
+                if (close < 0) {
+                    break;
+                }
+                String tag = xhtml.substring(i + 1, close).trim().toLowerCase();
+                if (tag.startsWith("br") || tag.equals("/p") || tag.equals("/li")) {
+                    out.append('\n');
+                }
+                i = close;
+            } else if (c == '&') {
+                int semicolon = xhtml.indexOf(';', i);
+                String entity = semicolon < 0 ? "" : xhtml.substring(i + 1, semicolon);
+                char decoded = decode(entity);
+                if (decoded != 0) {
+                    out.append(decoded);
+                    i = semicolon;
+                } else {
+                    out.append(c);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString().trim();
+    }
+
+    /**
+     *
+     * @param customVariableContext
+     * @param value
+     * @return value with Bamboo variables substituted, Bamboo is only asked when there is a "${" to substitute
+     */
+    @Nullable
+    public static String substitute(CustomVariableContext customVariableContext, @Nullable String value)
+    {
+        if (value == null || !value.contains(VARIABLE_START)) {
+            return value;
+        }
+        return customVariableContext.substituteString(value);
+    }
+
+    @Nullable
+    private static String valueOf(Variable variable,
+                                  String content,
+                                  @Nullable ImmutablePlan plan,
+                                  @Nullable ResultsSummary resultsSummary,
+                                  @Nullable DeploymentResult deploymentResult)
+    {
+        switch (variable) {
+            case CONTENT:
+                return content;
+            case PLAN:
+                return plan != null ? plan.getName() : null;
+            case PLAN_KEY:
+                return plan != null ? plan.getKey() : null;
+            case BUILD_NUMBER:
+                return resultsSummary != null ? String.valueOf(resultsSummary.getBuildNumber()) : null;
+            case RESULT_KEY:
+                return resultsSummary != null ? resultsSummary.getBuildResultKey() : null;
+            case STATE:
+                if (resultsSummary != null) {
+                    return String.valueOf(resultsSummary.getBuildState());
+                }
+                return deploymentResult != null ? String.valueOf(deploymentResult.getDeploymentState()) : null;
+            case DURATION:
+                return resultsSummary != null ? resultsSummary.getDurationDescription() : null;
+            case REASON:
+                return resultsSummary != null ? resultsSummary.getReasonSummary() : null;
+            case TESTS:
+                return resultsSummary != null ? resultsSummary.getTestSummary() : null;
+            case ENVIRONMENT:
+                return deploymentResult != null && deploymentResult.getEnvironment() != null ? deploymentResult.getEnvironment().getName() : null;
+            case VERSION:
+                return deploymentResult != null ? deploymentResult.getDeploymentVersionName() : null;
+            default:
+                return null;
+        }
+    }
+
+    private static StringBuilder builder()
+    {
+        StringBuilder builder = BUILDER.get();
+        if (builder.capacity() > MAX_REUSED_CAPACITY) {
+            //Don't pin one huge message's buffer to the thread for good
+            builder = new StringBuilder(256);
+            BUILDER.set(builder);
+        }
+        builder.setLength(0);
+        return builder;
+    }
+
+    /**
+     * Appends a literal, resolving each Bamboo variable in it on its own, and escaping it for XHTML.
+     */
+    private static void appendLiteral(String literal, boolean xhtml, CustomVariableContext customVariableContext, StringBuilder out)
+    {
+        if (!literal.contains(VARIABLE_START)) {
+            out.append(literal);
+            return;
+        }
+        int position = 0;
+        while (position < literal.length()) {
+            int start = literal.indexOf(VARIABLE_START, position);
+            int end = start < 0 ? -1 : literal.indexOf('}', start + VARIABLE_START.length());
+            if (end < 0) {
+                out.append(literal, position, literal.length());
+                return;
+            }
+            out.append(literal, position, start);
+            String value = customVariableContext.substituteString(literal.substring(start, end + 1));
+            if (value != null && xhtml) {
+                escape(value, out);
+            } else if (value != null) {
+                out.append(value);
+            }
+            position = end + 1;
+        }
+    }
+
+    private static void escape(String value, StringBuilder out)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\'':
+                    out.append("&apos;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        //Markup only, never resolve DTDs or external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static char decode(String entity)
+    {
+        if ("lt".equals(entity)) {
+            return '<';
+        } else if ("gt".equals(entity)) {
+            return '>';
+        } else if ("amp".equals(entity)) {
+            return '&';
+        } else if ("quot".equals(entity)) {
+            return '"';
+        } else if ("apos".equals(entity)) {
+            return '\'';
+        } else if ("nbsp".equals(entity)) {
+            return ' ';
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,304 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.jetbrains.annotations.Nullable;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for every network operation the plugin performs, per server and room.
+ * Recording never locks: counters are atomics and histograms are XMPPMucLatencyHistogram. Published over JMX
+ * through XMPPMucMetricsMXBean.
+ */
+public class XMPPMucMetrics implements XMPPMucMetricsMXBean, DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucMetrics.class);
+
+    public static final String OBJECT_NAME = "com.ipsoft.plugins.bamboo.xmppmuc:type=Metrics";
+
+    /**
+     * The operations we time. THROTTLE is how long XMPPMucRateLimiter held a send back each time it was asked, 0 when
+     * it let it through.
+     */
+    public enum Operation
+    {
+        CONNECT, LOGIN, DISCOVERY, JOIN, SEND, DISCONNECT, THROTTLE;
+
+        private final String label = name().toLowerCase();
+    }
+
+    private final ConcurrentMap<MetricKey, Stats> stats = new ConcurrentHashMap<MetricKey, Stats>();
+    private volatile XMPPMucDeliveryQueue deliveryQueue;
+    private volatile XMPPMucOutbox outbox;
+    private final AtomicLong suppressionHits = new AtomicLong();
+    private final AtomicLong suppressionMisses = new AtomicLong();
+
+    public XMPPMucMetrics()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            //Left behind by a previous version of the plugin that was not disabled cleanly
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("XMPP MUC unable to register metrics MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     *
+     * @return System.nanoTime(), to pass back to success() or failure() when the operation is over
+     */
+    public long start()
+    {
+        return System.nanoTime();
+    }
+
+    public void success(Operation operation, XMPPMucConferenceInstantMessagingServerDefinition server, @Nullable String room, long startNanos)
+    {
+        Stats operationStats = statsFor(operation, server, room);
+        operationStats.successes.incrementAndGet();
+        operationStats.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public void failure(Operation operation, XMPPMucConferenceInstantMessagingServerDefinition server, @Nullable String room, long startNanos, Throwable cause)
+    {
+        Stats operationStats = statsFor(operation, server, room);
+        operationStats.failure(cause.getClass().getSimpleName()).incrementAndGet();
+        operationStats.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     *
+     * @param operation
+     * @param server
+     * @param room
+     * @param micros
+     * Counts a successful operation whose duration was measured by the caller.
+     */
+    public void record(Operation operation, XMPPMucConferenceInstantMessagingServerDefinition server, @Nullable String room, long micros)
+    {
+        Stats operationStats = statsFor(operation, server, room);
+        operationStats.successes.incrementAndGet();
+        operationStats.latency.record(micros);
+    }
+
+    /**
+     *
+     * @param suppressed true if XMPPMucSuppressor dropped the notification, false if it let it through
+     */
+    public void suppression(boolean suppressed)
+    {
+        (suppressed ? suppressionHits : suppressionMisses).incrementAndGet();
+    }
+
+    void setDeliveryQueue(XMPPMucDeliveryQueue deliveryQueue)
+    {
+        this.deliveryQueue = deliveryQueue;
+    }
+
+    void setOutbox(XMPPMucOutbox outbox)
+    {
+        this.outbox = outbox;
+    }
+
+    private Stats statsFor(Operation operation, XMPPMucConferenceInstantMessagingServerDefinition server, @Nullable String room)
+    {
+        MetricKey key = new MetricKey(operation, server.getHost(), room);
+        Stats existing = stats.get(key);
+        if (existing == null) {
+            Stats created = new Stats();
+            existing = stats.putIfAbsent(key, created);
+            if (existing == null) {
+                existing = created;
+            }
+        }
+        return existing;
+    }
+
+    public Map<String, Long> getSuccessCounts()
+    {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<MetricKey, Stats> entry : stats.entrySet()) {
+            result.put(entry.getKey().toString(), entry.getValue().successes.get());
+        }
+        return result;
+    }
+
+    public Map<String, Long> getFailureCounts()
+    {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<MetricKey, Stats> entry : stats.entrySet()) {
+            for (Map.Entry<String, AtomicLong> failure : entry.getValue().failures.entrySet()) {
+                result.put(entry.getKey() + " " + failure.getKey(), failure.getValue().get());
+            }
+        }
+        return result;
+    }
+
+    public Map<String, Long> getLatencyP50Micros()
+    {
+        return percentiles(50);
+    }
+
+    public Map<String, Long> getLatencyP99Micros()
+    {
+        return percentiles(99);
+    }
+
+    public Map<String, Long> getLatencyP999Micros()
+    {
+        return percentiles(99.9);
+    }
+
+    public Map<String, Long> getLatencyMaxMicros()
+    {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<MetricKey, Stats> entry : stats.entrySet()) {
+            result.put(entry.getKey().toString(), entry.getValue().latency.getMax());
+        }
+        return result;
+    }
+
+    private Map<String, Long> percentiles(double percentile)
+    {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<MetricKey, Stats> entry : stats.entrySet()) {
+            result.put(entry.getKey().toString(), entry.getValue().latency.getValueAtPercentile(percentile));
+        }
+        return result;
+    }
+
+    public int getQueueDepth()
+    {
+        XMPPMucDeliveryQueue queue = deliveryQueue;
+        return queue != null ? queue.getQueueDepth() : 0;
+    }
+
+    public Map<String, Integer> getQueueDepthByPriority()
+    {
+        XMPPMucDeliveryQueue queue = deliveryQueue;
+        return queue != null ? queue.getQueueDepthByPriority() : new TreeMap<String, Integer>();
+    }
+
+    public int getQueueWorkers()
+    {
+        XMPPMucDeliveryQueue queue = deliveryQueue;
+        return queue != null ? queue.getWorkerCount() : 0;
+    }
+
+    public long getQueueDropped()
+    {
+        XMPPMucDeliveryQueue queue = deliveryQueue;
+        return queue != null ? queue.getDroppedCount() : 0;
+    }
+
+    public long getOutboxPending()
+    {
+        XMPPMucOutbox journal = outbox;
+        return journal != null ? journal.getPendingCount() : 0;
+    }
+
+    public long getOutboxBytes()
+    {
+        XMPPMucOutbox journal = outbox;
+        return journal != null ? journal.getSizeBytes() : 0;
+    }
+
+    public long getSuppressionHits()
+    {
+        return suppressionHits.get();
+    }
+
+    public long getSuppressionMisses()
+    {
+        return suppressionMisses.get();
+    }
+
+    public void reset()
+    {
+        stats.clear();
+        suppressionHits.set(0);
+        suppressionMisses.set(0);
+    }
+
+    public void destroy()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.debug("XMPP MUC metrics MBean was not registered", e);
+        }
+    }
+
+    private static final class MetricKey
+    {
+        private final Operation operation;
+        private final String host;
+        private final String room;
+
+        MetricKey(Operation operation, String host, @Nullable String room)
+        {
+            this.operation = operation;
+            this.host = host != null ? host : "-";
+            this.room = room != null ? room : "-";
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MetricKey)) {
+                return false;
+            }
+            MetricKey that = (MetricKey) o;
+            return operation == that.operation && host.equals(that.host) && room.equals(that.room);
+        }
+
+        public int hashCode() {
+            int result = operation.hashCode();
+            result = 31 * result + host.hashCode();
+            result = 31 * result + room.hashCode();
+            return result;
+        }
+
+        public String toString() {
+            return operation.label + " " + host + " " + room;
+        }
+    }
+
+    private static final class Stats
+    {
+        private final AtomicLong successes = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+        private final XMPPMucLatencyHistogram latency = new XMPPMucLatencyHistogram();
+
+        AtomicLong failure(String exception)
+        {
+            AtomicLong count = failures.get(exception);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = failures.putIfAbsent(exception, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import java.util.Map;
+
+/**
+ * JMX view of XMPPMucMetrics, registered as com.ipsoft.plugins.bamboo.xmppmuc:type=Metrics.
+ * Map keys read "operation server room", e.g. "join jabber.example.com builds@conference.example.com";
+ * operations without a room (connect, login, disconnect) use "-". Latencies are in microseconds.
+ */
+public interface XMPPMucMetricsMXBean
+{
+    Map<String, Long> getSuccessCounts();
+
+    /**
+     * @return failures keyed by "operation server room exception"
+     */
+    Map<String, Long> getFailureCounts();
+
+    Map<String, Long> getLatencyP50Micros();
+
+    Map<String, Long> getLatencyP99Micros();
+
+    Map<String, Long> getLatencyP999Micros();
+
+    Map<String, Long> getLatencyMaxMicros();
+
+    int getQueueDepth();
+
+    /**
+     * @return queued messages keyed by priority lane: urgent, normal, low
+     */
+    Map<String, Integer> getQueueDepthByPriority();
+
+    int getQueueWorkers();
+
+    /**
+     * @return notifications the overflow policy moved from the full queue to the outbox
+     */
+    long getQueueDropped();
+
+    /**
+     * @return notifications journalled in the outbox waiting for an IM server to come back
+     */
+    long getOutboxPending();
+
+    long getOutboxBytes();
+
+    /**
+     * @return notifications XMPPMucSuppressor dropped as repeats of one already posted in its window
+     */
+    long getSuppressionHits();
+
+    /**
+     * @return notifications XMPPMucSuppressor checked and let through
+     */
+    long getSuppressionMisses();
+
+    /**
+     * Forgets every counter and histogram.
+     */
+    void reset();
+}
@@ -13,23 +13,19 @@ import com.atlassian.bamboo.resultsummary.ResultsSummary;
 import com.atlassian.bamboo.template.TemplateRenderer;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
 import com.atlassian.bamboo.utils.error.SimpleErrorCollection;
+import com.atlassian.bamboo.utils.i18n.I18nBean;
+import com.atlassian.bamboo.utils.i18n.I18nBeanFactory;
 import com.atlassian.bamboo.variable.CustomVariableContext;
 
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
+import org.apache.log4j.Logger;
 
-import org.jdom.output.Format;
-import org.jdom.output.XMLOutputter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
-import java.io.IOException;
-import java.io.StringReader;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -38,26 +34,65 @@ public class XMPPMucNotificationRecipient extends AbstractNotificationRecipient
         NotificationRecipient.RequiresPlan,
         NotificationRecipient.RequiresResultSummary {
 
-    private static String MUC_ROOM = "room";
-    private static String MUC_ROOMPW = "roompw";
-    private static String MUC_NICKNAME = "nickname";
+    private static final Logger log = Logger.getLogger(XMPPMucNotificationRecipient.class);
+
+    //Module key in atlassian-plugin.xml, saved notification rules name their recipient type by it
+    static final String MODULE_KEY = "recipient.xmppmuc";
+
+    static final String MUC_ROOM = "room";
+    static final String MUC_ROOMPW = "roompw";
+    static final String MUC_ROOM_PASSWORDS = "roomPasswords";
+    static final String MUC_NICKNAME = "nickname";
+    static final String MUC_SERVER = "server";
+    private static String MUC_TEMPLATE = "template";
+    private static String MUC_XHTML = "xhtml";
+    private static String MUC_COALESCE_WINDOW = "coalesceWindow";
+    private static String MUC_COALESCE_MAX_BATCH = "coalesceMaxBatch";
+    private static String MUC_COALESCE_MAX_DELAY = "coalesceMaxDelay";
+    private static String MUC_SUPPRESS_WINDOW = "suppressWindow";
+    private static String MUC_PRIORITY = "priority";
+    private static String MUC_PRIORITIES = "priorities";
+    private static int DEFAULT_COALESCE_MAX_BATCH = 20;
+    private static int DEFAULT_COALESCE_MAX_DELAY = 10;
     private String room = null;
     private String roompw = null;
+    private String roomPasswords = null;
     private String nickname = null;
+    private String server = null;
+    private String template = null;
+    private String xhtml = null;
+    private String coalesceWindow = null;
+    private String coalesceMaxBatch = null;
+    private String coalesceMaxDelay = null;
+    private String suppressWindow = null;
+    private String priority = null;
 
     private TemplateRenderer templateRenderer;
+    private I18nBeanFactory i18nBeanFactory;
 
     private ImmutablePlan plan;
     private ResultsSummary resultsSummary;
     private DeploymentResult deploymentResult;
     private CustomVariableContext customVariableContext;
+    private XMPPMucCoalescer xmppMucCoalescer;
+    private XMPPMucSuppressor xmppMucSuppressor;
+    private XMPPMucServerDefinitionCache xmppMucServerDefinitionCache;
 
     @Override
     public void populate(@NotNull Map<String, String[]> params)
     {
         this.room = getParam(MUC_ROOM, params);
         this.roompw = getParam(MUC_ROOMPW, params);
+        this.roomPasswords = getParam(MUC_ROOM_PASSWORDS, params);
         this.nickname = getParam(MUC_NICKNAME, params);
+        this.server = getParam(MUC_SERVER, params);
+        this.template = getParam(MUC_TEMPLATE, params);
+        this.xhtml = getParam(MUC_XHTML, params);
+        this.coalesceWindow = getParam(MUC_COALESCE_WINDOW, params);
+        this.coalesceMaxBatch = getParam(MUC_COALESCE_MAX_BATCH, params);
+        this.coalesceMaxDelay = getParam(MUC_COALESCE_MAX_DELAY, params);
+        this.suppressWindow = getParam(MUC_SUPPRESS_WINDOW, params);
+        this.priority = getParam(MUC_PRIORITY, params);
     }
 
     @Override
@@ -68,52 +103,56 @@ public class XMPPMucNotificationRecipient extends AbstractNotificationRecipient
             return;
         }
 
-        SAXBuilder sb = new SAXBuilder();
+        XMPPMucRecipientConfig config;
         try {
-            Document doc = sb.build(new StringReader(configurationData));
-            Element root = doc.getRootElement();
-
-            room = root.getChildText(MUC_ROOM);
-            roompw = root.getChildText(MUC_ROOMPW);
-            nickname = root.getChildText(MUC_NICKNAME);
-        } catch (JDOMException e){
-            //Ignore
-        } catch (IOException e) {
-            //Ignore
+            config = XMPPMucRecipientConfigCodec.decode(configurationData);
+        } catch (IllegalArgumentException e) {
+            log.error("Unable to read XMPP MUC recipient configuration, the notification will not be delivered: " + e.getMessage());
+            return;
         }
+
+        room = config.get(MUC_ROOM);
+        roompw = config.get(MUC_ROOMPW);
+        roomPasswords = config.get(MUC_ROOM_PASSWORDS);
+        nickname = config.get(MUC_NICKNAME);
+        server = config.get(MUC_SERVER);
+        template = config.get(MUC_TEMPLATE);
+        xhtml = config.get(MUC_XHTML);
+        coalesceWindow = config.get(MUC_COALESCE_WINDOW);
+        coalesceMaxBatch = config.get(MUC_COALESCE_MAX_BATCH);
+        coalesceMaxDelay = config.get(MUC_COALESCE_MAX_DELAY);
+        suppressWindow = config.get(MUC_SUPPRESS_WINDOW);
+        priority = config.get(MUC_PRIORITY);
     }
 
     @NotNull
     @Override
     public String getRecipientConfig()
     {
-        //Root
-        Document doc = new Document();
-        Element root = new Element(XMPPMucNotificationRecipient.class.getName());
-        doc.addContent(root);
-
-        //Room
-        Element xmlRoom = new Element(MUC_ROOM);
-        if (this.room != null) xmlRoom.setText(this.room);
-        root.addContent(xmlRoom);
-
-        //Room PW
-        Element xmlRoompw = new Element(MUC_ROOMPW);
-        if (this.roompw != null) xmlRoompw.setText(this.roompw);
-        root.addContent(xmlRoompw);
-
-        //Room NickName
-        Element xmlNicname = new Element(MUC_NICKNAME);
-        if (this.nickname != null) xmlNicname.setText(this.nickname);
-        root.addContent(xmlNicname);
-
-        //Serialize
-        Format prettyFormat = Format.getPrettyFormat();
-        prettyFormat.setOmitDeclaration(true);
-        XMLOutputter outputter = new XMLOutputter(prettyFormat);
-        String xmlString = outputter.outputString(doc);
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put(MUC_ROOM, this.room);
+        values.put(MUC_ROOMPW, this.roompw);
+        values.put(MUC_NICKNAME, this.nickname);
+
+        //Optional fields are only written when set so older configurations stay byte-identical
+        putIfSet(values, MUC_ROOM_PASSWORDS, this.roomPasswords);
+        putIfSet(values, MUC_SERVER, this.server);
+        putIfSet(values, MUC_TEMPLATE, this.template);
+        putIfSet(values, MUC_XHTML, this.xhtml);
+        putIfSet(values, MUC_COALESCE_WINDOW, this.coalesceWindow);
+        putIfSet(values, MUC_COALESCE_MAX_BATCH, this.coalesceMaxBatch);
+        putIfSet(values, MUC_COALESCE_MAX_DELAY, this.coalesceMaxDelay);
+        putIfSet(values, MUC_SUPPRESS_WINDOW, this.suppressWindow);
+        putIfSet(values, MUC_PRIORITY, this.priority);
+
+        return XMPPMucRecipientConfigCodec.encode(values);
+    }
 
-        return xmlString;
+    private static void putIfSet(Map<String, String> values, String name, @Nullable String value)
+    {
+        if (value != null && !value.isEmpty()) {
+            values.put(name, value);
+        }
     }
 
     @NotNull
@@ -136,12 +175,61 @@ public class XMPPMucNotificationRecipient extends AbstractNotificationRecipient
         {
             context.put(MUC_ROOMPW, roompw);
         }
+        if (roomPasswords != null)
+        {
+            context.put(MUC_ROOM_PASSWORDS, roomPasswords);
+        }
         if (nickname != null)
         {
             context.put(MUC_NICKNAME, nickname);
         }
+        if (server != null)
+        {
+            context.put(MUC_SERVER, server);
+        }
+        if (template != null)
+        {
+            context.put(MUC_TEMPLATE, template);
+        }
+        if (xhtml != null)
+        {
+            context.put(MUC_XHTML, xhtml);
+        }
+        if (coalesceWindow != null)
+        {
+            context.put(MUC_COALESCE_WINDOW, coalesceWindow);
+        }
+        if (coalesceMaxBatch != null)
+        {
+            context.put(MUC_COALESCE_MAX_BATCH, coalesceMaxBatch);
+        }
+        if (coalesceMaxDelay != null)
+        {
+            context.put(MUC_COALESCE_MAX_DELAY, coalesceMaxDelay);
+        }
+        if (suppressWindow != null)
+        {
+            context.put(MUC_SUPPRESS_WINDOW, suppressWindow);
+        }
+        if (priority != null)
+        {
+            context.put(MUC_PRIORITY, priority);
+        }
 
-        System.out.println("populateContext = " + context.toString());
+        Map<String, String> priorities = new LinkedHashMap<String, String>();
+        priorities.put("", getI18nBean().getText("xmppmuc.priority.automatic"));
+        for (XMPPMucPriority lane : XMPPMucPriority.values()) {
+            priorities.put(lane.name(), getI18nBean().getText("xmppmuc.priority." + lane.name().toLowerCase()));
+        }
+        context.put(MUC_PRIORITIES, priorities);
+
+        if (log.isDebugEnabled()) {
+            Map<String, Object> logged = Maps.newHashMap(context);
+            //Never log passwords
+            logged.remove(MUC_ROOMPW);
+            logged.remove(MUC_ROOM_PASSWORDS);
+            log.debug("populateContext = " + logged);
+        }
 
         return context;
     }
@@ -157,7 +245,10 @@ public class XMPPMucNotificationRecipient extends AbstractNotificationRecipient
     @NotNull
     public List<NotificationTransport> getTransports() {
         List<NotificationTransport> list = Lists.newArrayList();
-        list.add(new XMPPMucNotificationTransport(room, roompw, nickname, plan, resultsSummary, deploymentResult, customVariableContext));
+        list.add(new XMPPMucNotificationTransport(room, roompw, roomPasswords, nickname, server, template, Boolean.parseBoolean(xhtml),
+                toInt(coalesceWindow, 0) * 1000L, toInt(coalesceMaxBatch, DEFAULT_COALESCE_MAX_BATCH), toInt(coalesceMaxDelay, DEFAULT_COALESCE_MAX_DELAY) * 1000L,
+                toInt(suppressWindow, 0) * 1000L, XMPPMucPriority.parse(priority),
+                plan, resultsSummary, deploymentResult, customVariableContext, xmppMucCoalescer, xmppMucSuppressor));
         return list;
     }
 
@@ -167,21 +258,91 @@ public class XMPPMucNotificationRecipient extends AbstractNotificationRecipient
 
         //MUC_ROOM is the only required field
         String[] roomArray = (String[]) params.get(MUC_ROOM);
-        if ((roomArray == null) || (roomArray.length == 0)) {
-            errorCollection.addError(MUC_ROOM, "You must enter a MUC room JID");
+        this.room = getParam(MUC_ROOM, params);
+        List<XMPPMucRoom> rooms = XMPPMucRoom.parseList(this.room, null, null);
+        if ((roomArray == null) || (roomArray.length == 0) || rooms.isEmpty()) {
+            errorCollection.addError(MUC_ROOM, getI18nBean().getText("xmppmuc.room.error"));
             return errorCollection;
         }
 
-        //Valid MUC_ROOM JID Format
-        this.room = getParam(MUC_ROOM, params);
-        if (!this.room.matches(".*@.*")){
-            errorCollection.addError(MUC_ROOM, "Invalid format, should be roomname@conferance-server-url");
-            return errorCollection;
+        //Valid MUC_ROOM JID Format, for every room in the list
+        for (XMPPMucRoom mucRoom : rooms) {
+            if (!mucRoom.isValid()) {
+                errorCollection.addError(MUC_ROOM, getI18nBean().getText("xmppmuc.room.invalid", new String[] { mucRoom.getJid() }));
+                return errorCollection;
+            }
+        }
+
+        //Optional per-room passwords, one "room password" line for each listed room
+        String passwords = getParam(MUC_ROOM_PASSWORDS, params);
+        int invalidLine = XMPPMucRoom.invalidPasswordLine(passwords);
+        if (invalidLine > 0) {
+            errorCollection.addError(MUC_ROOM_PASSWORDS, getI18nBean().getText("xmppmuc.roomPasswords.error", new String[] { String.valueOf(invalidLine) }));
+        } else {
+            for (String jid : XMPPMucRoom.parsePasswords(passwords).keySet()) {
+                if (!isListed(rooms, jid)) {
+                    errorCollection.addError(MUC_ROOM_PASSWORDS, getI18nBean().getText("xmppmuc.roomPasswords.unknown", new String[] { jid }));
+                    break;
+                }
+            }
+        }
+
+        //Optional server pin must name a configured IM server
+        String pin = getParam(MUC_SERVER, params);
+        if (pin != null && !pin.trim().isEmpty() && xmppMucServerDefinitionCache != null
+                && XMPPMucServerRouter.findServer(xmppMucServerDefinitionCache.getServers(), pin) == null) {
+            errorCollection.addError(MUC_SERVER, getI18nBean().getText("xmppmuc.server.error"));
+        }
+
+        //Coalescing fields are optional whole numbers
+        validateNumber(MUC_COALESCE_WINDOW, params, errorCollection);
+        validateNumber(MUC_COALESCE_MAX_BATCH, params, errorCollection);
+        validateNumber(MUC_COALESCE_MAX_DELAY, params, errorCollection);
+        validateNumber(MUC_SUPPRESS_WINDOW, params, errorCollection);
+
+        //An XHTML template must be markup a client can parse
+        String text = getParam(MUC_TEMPLATE, params);
+        if (text != null && !text.trim().isEmpty() && Boolean.parseBoolean(getParam(MUC_XHTML, params))
+                && !XMPPMucMessageTemplate.compile(text).isWellFormedXhtml()) {
+            errorCollection.addError(MUC_TEMPLATE, getI18nBean().getText("xmppmuc.template.error"));
+        }
+
+        //Priority is optional, empty means automatic
+        String lane = getParam(MUC_PRIORITY, params);
+        if (lane != null && !lane.trim().isEmpty() && XMPPMucPriority.parse(lane) == null) {
+            errorCollection.addError(MUC_PRIORITY, getI18nBean().getText("xmppmuc.priority.error"));
         }
 
         return errorCollection;
     }
 
+    private void validateNumber(String field, Map<String, String[]> params, ErrorCollection errorCollection) {
+        String value = getParam(field, params);
+        if (value != null && !value.trim().isEmpty() && toInt(value, -1) < 0) {
+            errorCollection.addError(field, getI18nBean().getText("xmppmuc." + field + ".error"));
+        }
+    }
+
+    private static boolean isListed(List<XMPPMucRoom> rooms, String jid) {
+        for (XMPPMucRoom mucRoom : rooms) {
+            if (mucRoom.getJid().equals(jid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int toInt(@Nullable String value, int defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public void setDeploymentResult(DeploymentResult deploymentResult) {
         this.deploymentResult = deploymentResult;
     }
@@ -200,11 +361,27 @@ public class XMPPMucNotificationRecipient extends AbstractNotificationRecipient
         this.resultsSummary = resultsSummary;
     }
 
+    private I18nBean getI18nBean()
+    {
+        return i18nBeanFactory.getI18nBean();
+    }
+
     //-----------------------------------Dependencies
     public void setTemplateRenderer(TemplateRenderer templateRenderer)
     {
         this.templateRenderer = templateRenderer;
     }
 
+    public void setI18nBeanFactory(I18nBeanFactory i18nBeanFactory)
+    {
+        this.i18nBeanFactory = i18nBeanFactory;
+    }
+
     public void setCustomVariableContext(CustomVariableContext customVariableContext) { this.customVariableContext = customVariableContext; }
+
+    public void setXmppMucCoalescer(XMPPMucCoalescer xmppMucCoalescer) { this.xmppMucCoalescer = xmppMucCoalescer; }
+
+    public void setXmppMucSuppressor(XMPPMucSuppressor xmppMucSuppressor) { this.xmppMucSuppressor = xmppMucSuppressor; }
+
+    public void setXmppMucServerDefinitionCache(XMPPMucServerDefinitionCache xmppMucServerDefinitionCache) { this.xmppMucServerDefinitionCache = xmppMucServerDefinitionCache; }
 }
@@ -0,0 +1,766 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+import com.atlassian.config.util.BootstrapUtils;
+
+import org.apache.log4j.Logger;
+
+import org.jetbrains.annotations.Nullable;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of messages that could not be delivered because no IM server was reachable, replayed in order
+ * once one is. Lives in xmppmuc-outbox under the Bamboo home (or -Dxmppmuc.outbox.dir) and survives restarts.
+ *
+ * The journal is a sequence of segment files, outbox-NNNNNNNNNNNNNNNNNNNN.seg, each a run of records:
+ * int payload length, int CRC32 of the payload, one state byte (pending or acknowledged), then the payload.
+ * Appends go through FileChannel writes and are fsynced together every -Dxmppmuc.outbox.fsyncMillis, so a long
+ * outage costs one write per message rather than one fsync. A delivered record is acknowledged by flipping its state
+ * byte in place, and a segment is deleted as soon as nothing in it is pending. Delivery is at-least-once: a crash
+ * between sending and the next fsync replays the message again.
+ *
+ * Once a room has a record in the outbox, its new messages are appended behind it instead of being sent directly,
+ * so every room still sees its notifications in order.
+ *
+ * Room passwords are never written to the journal, a record only notes that its room has one. The password is kept in
+ * memory from the messages appended and from the saved notification rules (see XMPPMucWarmUp), and looked up again at
+ * replay; a room whose password is not known yet, such as one resolved from a plan variable after a restart, waits for
+ * its next notification to bring it. Segment files are readable by Bamboo's user only.
+ */
+public class XMPPMucOutbox implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucOutbox.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String DIRECTORY_NAME = "xmppmuc-outbox";
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_BYTES = 9;
+    private static final int STATE_OFFSET = 8;
+    private static final byte PENDING = 1;
+    private static final byte ACKNOWLEDGED = 2;
+    private static final byte FORMAT_VERSION = 3;
+    private static final byte FORMAT_VERSION_XHTML = 2;
+    private static final byte FORMAT_VERSION_PLAIN = 1;
+    private static final byte HAS_PASSWORD = 1;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    //A replay pass stops after this many rooms in a row failed, the outage is not over yet
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    private final XMPPMucMessageSender sender;
+    private final File directory;
+    private final Object writeLock = new Object();
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final ConcurrentMap<String, AtomicInteger> pendingByRoom = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, String> roomPasswords = new ConcurrentHashMap<String, String>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ScheduledExecutorService flusher;
+    private final ScheduledExecutorService replayer;
+    private Segment active;
+    private long nextSegmentId;
+    private boolean closed;
+
+    public XMPPMucOutbox(XMPPMucMessageSender sender, XMPPMucMetrics metrics)
+    {
+        this.sender = sender;
+        this.directory = resolveDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.error("XMPP MUC unable to create outbox directory " + directory + ", undeliverable notifications will be lost");
+        }
+        ownerOnly(directory);
+        recover();
+        metrics.setOutbox(this);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(daemon("xmppmuc-outbox-fsync"));
+        long fsyncMillis = Math.max(1, XMPPMucSettings.getOutboxFsyncMillis());
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+
+        replayer = Executors.newSingleThreadScheduledExecutor(daemon("xmppmuc-outbox-replay"));
+        long replaySeconds = Math.max(1, XMPPMucSettings.getOutboxReplaySeconds());
+        replayer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    replay();
+                } catch (RuntimeException e) {
+                    log.error("XMPP MUC outbox replay failed", e);
+                }
+            }
+        }, replaySeconds, replaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     *
+     * @param room
+     * @return true if the room has messages waiting in the outbox, new ones must queue up behind them
+     */
+    public boolean hasPending(String room)
+    {
+        AtomicInteger count = pendingByRoom.get(roomKey(room));
+        return count != null && count.get() > 0;
+    }
+
+    /**
+     * @return messages waiting in the outbox
+     */
+    public long getPendingCount()
+    {
+        return pending.get();
+    }
+
+    /**
+     * @return bytes used by the outbox segments, including acknowledged records not yet compacted
+     */
+    public long getSizeBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     *
+     * @param room
+     * @param password
+     * Remembers the room's password for replaying its records, which do not hold it.
+     */
+    public void rememberPassword(String room, @Nullable String password)
+    {
+        if (password != null && !password.isEmpty()) {
+            roomPasswords.put(roomKey(room), password);
+        }
+    }
+
+    /**
+     *
+     * @param message
+     * Journals the message for replay, without its room password. Returns once it is written, it is on disk after the
+     * next fsync.
+     */
+    public void append(XMPPMucMessage message)
+    {
+        rememberPassword(message.getRoom(), message.getRoompw());
+        byte[] payload = encode(message);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(PENDING).put(payload);
+        record.flip();
+
+        //Counted first so the room's next message is journalled behind this one even while we write
+        AtomicInteger roomCount = roomCounter(message.getRoom());
+        roomCount.incrementAndGet();
+        try {
+            synchronized (writeLock) {
+                //A late append must not reopen a segment that destroy() would never close
+                if (closed) {
+                    throw new IOException("outbox is closed");
+                }
+                if (bytes.get() + record.remaining() > XMPPMucSettings.getOutboxMaxBytes()) {
+                    throw new IOException("outbox is full at " + bytes.get() + " bytes");
+                }
+                if (active == null || active.size >= XMPPMucSettings.getOutboxSegmentBytes()) {
+                    active = openSegment(nextSegmentId++);
+                }
+                long position = active.size;
+                writeFully(active.channel, record, position);
+                active.size = position + HEADER_BYTES + payload.length;
+                active.pending.incrementAndGet();
+                active.dirty = true;
+                bytes.addAndGet(HEADER_BYTES + payload.length);
+                pending.incrementAndGet();
+            }
+        } catch (IOException e) {
+            roomCount.decrementAndGet();
+            log.error("XMPP MUC unable to write to outbox, notification for " + message.getRoom() + " lost", e);
+        }
+    }
+
+    /**
+     * Sends pending records oldest first. A room whose message fails is skipped for the rest of the pass so its
+     * order is kept, and the pass gives up after a few failures in a row.
+     */
+    void replay()
+    {
+        if (pending.get() == 0) {
+            return;
+        }
+        List<Segment> snapshot;
+        synchronized (writeLock) {
+            snapshot = new ArrayList<Segment>(segments.values());
+        }
+
+        Set<String> blocked = new HashSet<String>();
+        int failures = 0;
+        long delivered = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        try {
+            for (Segment segment : snapshot) {
+                long limit;
+                synchronized (writeLock) {
+                    if (segment.channel == null) {
+                        continue;
+                    }
+                    limit = segment.size;
+                }
+                long position = 0;
+                while (position < limit) {
+                    header.clear();
+                    readFully(segment.channel, header, position);
+                    header.flip();
+                    int length = header.getInt();
+                    header.getInt();
+                    byte state = header.get();
+                    if (state == PENDING) {
+                        byte[] payload = readPayload(segment.channel, position, length);
+                        XMPPMucMessage message = withPassword(decode(payload), payload);
+                        String room = roomKey(message.getRoom());
+                        if (message.getRoompw() == null && hasPassword(payload)) {
+                            //Not a failure of the server, the room waits for its next notification to bring the password
+                            if (blocked.add(room)) {
+                                log.debug("XMPP MUC outbox waiting for the password of " + message.getRoom());
+                            }
+                        } else if (!blocked.contains(room)) {
+                            if (sender.send(message)) {
+                                acknowledge(segment, position, message.getRoom());
+                                delivered++;
+                                failures = 0;
+                            } else {
+                                blocked.add(room);
+                                if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                                    return;
+                                }
+                            }
+                        }
+                    }
+                    position += HEADER_BYTES + length;
+                }
+                compact(segment);
+            }
+        } catch (IOException e) {
+            log.error("XMPP MUC unable to read outbox", e);
+        } finally {
+            if (delivered > 0) {
+                log.info("XMPP MUC replayed " + delivered + " notifications from the outbox, " + pending.get() + " still pending");
+            }
+        }
+    }
+
+    private void acknowledge(Segment segment, long position, String room) throws IOException
+    {
+        writeFully(segment.channel, ByteBuffer.wrap(new byte[] { ACKNOWLEDGED }), position + STATE_OFFSET);
+        segment.dirty = true;
+        segment.pending.decrementAndGet();
+        pending.decrementAndGet();
+        roomCounter(room).decrementAndGet();
+    }
+
+    /**
+     * Deletes the segment once nothing in it is pending. The active segment is retired too, appends then open a new one.
+     */
+    private void compact(Segment segment)
+    {
+        synchronized (writeLock) {
+            if (segment.channel == null || segment.pending.get() > 0) {
+                return;
+            }
+            if (segment == active) {
+                active = null;
+            }
+            segments.remove(segment.id);
+            bytes.addAndGet(-segment.size);
+            closeQuietly(segment);
+            if (!segment.file.delete()) {
+                log.warn("XMPP MUC unable to delete compacted outbox segment " + segment.file);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the pending counts from the segments left by the previous run, dropping a torn record at the end of a
+     * segment and segments with nothing pending. A damaged record further in is stepped over, the intact records after
+     * it are kept.
+     */
+    private void recover()
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        TreeMap<Long, File> found = new TreeMap<Long, File>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    found.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    log.warn("XMPP MUC ignoring unexpected file in outbox: " + file);
+                }
+            }
+        }
+
+        for (Long id : found.keySet()) {
+            nextSegmentId = id + 1;
+            Segment segment;
+            try {
+                segment = openSegment(id);
+                scan(segment);
+            } catch (IOException e) {
+                log.error("XMPP MUC unable to recover outbox segment " + found.get(id), e);
+                continue;
+            }
+            if (segment.pending.get() == 0) {
+                compact(segment);
+            }
+        }
+        //Appends always start a fresh segment after a restart
+        active = null;
+        if (pending.get() > 0) {
+            log.info("XMPP MUC outbox holds " + pending.get() + " notifications from before the restart, they will be replayed");
+        }
+    }
+
+    private void scan(Segment segment) throws IOException
+    {
+        long fileSize = segment.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= fileSize) {
+            long end = readRecord(segment, position, fileSize, header, true);
+            if (end < 0) {
+                long next = resync(segment, position + HEADER_BYTES, fileSize, header);
+                if (next < 0) {
+                    //Nothing readable follows, the last append was torn by a crash
+                    break;
+                }
+                skipDamaged(segment, position, next);
+                end = next;
+            }
+            position = end;
+        }
+        if (position < fileSize) {
+            log.warn("XMPP MUC discarding " + (fileSize - position) + " torn bytes at the end of " + segment.file);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+        bytes.addAndGet(position);
+    }
+
+    /**
+     *
+     * @param count true to add a pending record to the pending counts
+     * @return where the record at position ends, -1 if there is no intact record there
+     */
+    private long readRecord(Segment segment, long position, long fileSize, ByteBuffer header, boolean count) throws IOException
+    {
+        header.clear();
+        readFully(segment.channel, header, position);
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        byte state = header.get();
+        if (length < 0 || length > MAX_RECORD_BYTES || position + HEADER_BYTES + length > fileSize
+                || (state != PENDING && state != ACKNOWLEDGED)) {
+            return -1;
+        }
+        byte[] payload = readPayload(segment.channel, position, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            return -1;
+        }
+        if (state == PENDING) {
+            XMPPMucMessage message;
+            try {
+                message = decode(payload);
+            } catch (IOException e) {
+                return -1;
+            }
+            if (count) {
+                segment.pending.incrementAndGet();
+                pending.incrementAndGet();
+                roomCounter(message.getRoom()).incrementAndGet();
+                //Only records of earlier versions still carry one
+                rememberPassword(message.getRoom(), message.getRoompw());
+            }
+        }
+        return position + HEADER_BYTES + length;
+    }
+
+    /**
+     *
+     * @return the next position holding an intact record, -1 if there is none
+     * Only searched when a record fails its checks, so a byte by byte walk is affordable.
+     */
+    private long resync(Segment segment, long from, long fileSize, ByteBuffer header) throws IOException
+    {
+        for (long candidate = from; candidate + HEADER_BYTES <= fileSize; candidate++) {
+            if (readRecord(segment, candidate, fileSize, header, false) >= 0) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rewrites the header of a damaged span as acknowledged records covering it, so replay and later restarts step
+     * over it. Whatever notifications the span held are lost.
+     */
+    private void skipDamaged(Segment segment, long position, long next) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long start = position;
+        while (start < next) {
+            long remaining = next - start - HEADER_BYTES;
+            int length;
+            if (remaining <= MAX_RECORD_BYTES) {
+                length = (int) remaining;
+            } else if (remaining - MAX_RECORD_BYTES < HEADER_BYTES) {
+                //Leave room for the header of the last one
+                length = (int) (remaining - HEADER_BYTES);
+            } else {
+                length = MAX_RECORD_BYTES;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(readPayload(segment.channel, start, length));
+            header.clear();
+            header.putInt(length).putInt((int) crc.getValue()).put(ACKNOWLEDGED).flip();
+            writeFully(segment.channel, header, start);
+            start += HEADER_BYTES + length;
+        }
+        segment.channel.force(false);
+        log.error("XMPP MUC outbox segment " + segment.file + " is damaged, " + (next - position) + " bytes at offset "
+                + position + " could not be read and the notifications in them are lost");
+    }
+
+    /**
+     * Forces every segment written since the last call to disk.
+     */
+    void flush()
+    {
+        List<Segment> snapshot;
+        synchronized (writeLock) {
+            snapshot = new ArrayList<Segment>(segments.values());
+        }
+        for (Segment segment : snapshot) {
+            if (!segment.dirty) {
+                continue;
+            }
+            segment.dirty = false;
+            FileChannel channel;
+            synchronized (writeLock) {
+                channel = segment.channel;
+            }
+            //Forced outside the lock so appends carry on during the fsync
+            try {
+                if (channel != null) {
+                    channel.force(false);
+                }
+            } catch (ClosedChannelException e) {
+                //Compacted meanwhile, nothing left to keep
+            } catch (IOException e) {
+                segment.dirty = true;
+                log.error("XMPP MUC unable to fsync outbox segment " + segment.file, e);
+            }
+        }
+    }
+
+    /**
+     * Stops replaying, forces the journal to disk and closes it; pending messages are replayed after the next start.
+     */
+    public void destroy()
+    {
+        replayer.shutdownNow();
+        flusher.shutdownNow();
+        try {
+            replayer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (writeLock) {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                closeQuietly(segment);
+            }
+            segments.clear();
+            active = null;
+        }
+    }
+
+    private Segment openSegment(long id) throws IOException
+    {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, file, new RandomAccessFile(file, "rw").getChannel());
+        ownerOnly(file);
+        synchronized (writeLock) {
+            segments.put(id, segment);
+        }
+        return segment;
+    }
+
+    private AtomicInteger roomCounter(String room)
+    {
+        String key = roomKey(room);
+        AtomicInteger count = pendingByRoom.get(key);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = pendingByRoom.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+
+    private static String roomKey(@Nullable String room)
+    {
+        return room != null ? room : "";
+    }
+
+    static byte[] encode(XMPPMucMessage message)
+    {
+        //The password stays out of the journal, it is looked up again at replay
+        byte[][] fields = {
+                bytesOf(message.getRoom()), bytesOf(message.getNickname()), bytesOf(message.getServer()),
+                message.getBodyBytes(), message.getXhtmlBodyBytes(), bytesOf(message.getPriority().name()),
+                bytesOf(message.getPlanKey()), bytesOf(message.getState() != null ? message.getState().name() : null) };
+        int size = 2;
+        for (byte[] field : fields) {
+            size += 4 + (field != null ? field.length : 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FORMAT_VERSION);
+        String roompw = message.getRoompw();
+        buffer.put(roompw != null && !roompw.isEmpty() ? HAS_PASSWORD : 0);
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(field.length).put(field);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     *
+     * @param payload
+     * @return the message of a record; one of the current format comes without its room password, see hasPassword
+     * @throws IOException if the payload is not a record this version can read
+     */
+    static XMPPMucMessage decode(byte[] payload) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte version = buffer.get();
+        if (version == FORMAT_VERSION) {
+            buffer.get();
+            String room = stringOf(buffer);
+            String nickname = stringOf(buffer);
+            String server = stringOf(buffer);
+            String body = stringOf(buffer);
+            String xhtmlBody = stringOf(buffer);
+            XMPPMucPriority priority = XMPPMucPriority.parse(stringOf(buffer));
+            String planKey = stringOf(buffer);
+            String state = stringOf(buffer);
+            return new XMPPMucMessage(room, null, nickname, server, body, xhtmlBody,
+                    priority != null ? priority : XMPPMucPriority.NORMAL, planKey, buildState(state));
+        }
+        if (version != FORMAT_VERSION_XHTML && version != FORMAT_VERSION_PLAIN) {
+            throw new IOException("unknown outbox record version");
+        }
+        //Records of earlier versions held the password themselves
+        String room = stringOf(buffer);
+        String roompw = stringOf(buffer);
+        String nickname = stringOf(buffer);
+        String server = stringOf(buffer);
+        String body = stringOf(buffer);
+        //Records journaled before XHTML-IM support have no formatted body
+        String xhtmlBody = version == FORMAT_VERSION_XHTML ? stringOf(buffer) : null;
+        return new XMPPMucMessage(room, roompw, nickname, server, body, xhtmlBody);
+    }
+
+    /**
+     *
+     * @param payload
+     * @return true if the record's room needs a password the record does not hold
+     */
+    static boolean hasPassword(byte[] payload)
+    {
+        return payload.length > 1 && payload[0] == FORMAT_VERSION && payload[1] == HAS_PASSWORD;
+    }
+
+    private XMPPMucMessage withPassword(XMPPMucMessage message, byte[] payload)
+    {
+        String roompw = hasPassword(payload) ? roomPasswords.get(roomKey(message.getRoom())) : null;
+        if (roompw == null) {
+            return message;
+        }
+        return new XMPPMucMessage(message.getRoom(), roompw, message.getNickname(), message.getServer(), message.getBody(),
+                message.getXhtmlBody(), message.getPriority(), message.getPlanKey(), message.getState());
+    }
+
+    @Nullable
+    private static BuildState buildState(@Nullable String name)
+    {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return BuildState.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            //Replayed as a notification about no particular result
+            return null;
+        }
+    }
+
+    /**
+     * Bodies name plans and commits, keep them from other users on the Bamboo host.
+     */
+    private static void ownerOnly(File file)
+    {
+        boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true);
+        if (file.isDirectory()) {
+            restricted &= file.setExecutable(false, false) && file.setExecutable(true, true);
+        }
+        if (!restricted) {
+            log.debug("XMPP MUC unable to restrict permissions of " + file);
+        }
+    }
+
+    @Nullable
+    private static byte[] bytesOf(@Nullable String value)
+    {
+        return value != null ? value.getBytes(UTF_8) : null;
+    }
+
+    @Nullable
+    private static String stringOf(ByteBuffer buffer) throws IOException
+    {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("truncated outbox record");
+        }
+        String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static byte[] readPayload(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, position + HEADER_BYTES);
+        return payload.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("unexpected end of outbox segment");
+            }
+            offset += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private static void closeQuietly(Segment segment)
+    {
+        if (segment.channel == null) {
+            return;
+        }
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            log.trace(e.getStackTrace());
+        }
+        segment.channel = null;
+    }
+
+    private static File resolveDirectory()
+    {
+        String configured = XMPPMucSettings.getOutboxDirectory();
+        if (configured != null && !configured.trim().isEmpty()) {
+            return new File(configured.trim());
+        }
+        String home = null;
+        try {
+            home = BootstrapUtils.getBootstrapManager().getApplicationHome();
+        } catch (RuntimeException e) {
+            log.debug("XMPP MUC Bamboo home not available", e);
+        }
+        if (home == null) {
+            home = System.getProperty("bamboo.home", System.getProperty("java.io.tmpdir"));
+        }
+        return new File(home, DIRECTORY_NAME);
+    }
+
+    private static ThreadFactory daemon(final String name)
+    {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * One journal file. Size and channel are guarded by the outbox's write lock.
+     */
+    private static final class Segment
+    {
+        private final long id;
+        private final File file;
+        private final AtomicInteger pending = new AtomicInteger();
+        private FileChannel channel;
+        private long size;
+        private volatile boolean dirty;
+
+        Segment(long id, File file, FileChannel channel)
+        {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
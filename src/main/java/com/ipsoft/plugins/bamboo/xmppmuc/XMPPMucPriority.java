@@ -0,0 +1,89 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Delivery lane of a message in XMPPMucDeliveryQueue. Failures go out first, recoveries next and routine successes
+ * last, so during a backlog a red result does not wait behind green ones.
+ */
+public enum XMPPMucPriority
+{
+    URGENT, NORMAL, LOW;
+
+    private static final int CACHE_SIZE = 10000;
+
+    //Last state seen per plan or environment, to tell a recovery from a routine success
+    private static final Cache<String, BuildState> LAST_STATES = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
+    //Lane already given to a result, every recipient notified of it is handed the same one
+    private static final Cache<String, XMPPMucPriority> CLASSIFIED = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
+    /**
+     *
+     * @param subject plan key or deployment environment the result belongs to, null if unknown
+     * @param result key of the result itself, null if unknown
+     * @param state build or deployment state of the result, null for notifications not about a result
+     * @return URGENT for a failure, NORMAL for a recovery or anything that is not a result, LOW for a success
+     * following a success
+     * A result is compared with the subject's previous one only the first time it is classified, later calls for it
+     * get the same answer whatever was classified in between.
+     */
+    public static synchronized XMPPMucPriority classify(@Nullable String subject, @Nullable String result, @Nullable BuildState state)
+    {
+        if (state == null) {
+            return NORMAL;
+        }
+        //A rerun can bring the same result to another state, which is worth classifying again
+        String key = result != null ? result + " " + state : null;
+        if (key != null) {
+            XMPPMucPriority classified = CLASSIFIED.getIfPresent(key);
+            if (classified != null) {
+                return classified;
+            }
+        }
+        BuildState previous = null;
+        if (subject != null) {
+            previous = LAST_STATES.getIfPresent(subject);
+            LAST_STATES.put(subject, state);
+        }
+        XMPPMucPriority priority;
+        if (state == BuildState.FAILED) {
+            priority = URGENT;
+        } else if (state == BuildState.SUCCESS) {
+            priority = previous == BuildState.FAILED ? NORMAL : LOW;
+        } else {
+            priority = NORMAL;
+        }
+        if (key != null) {
+            CLASSIFIED.put(key, priority);
+        }
+        return priority;
+    }
+
+    /**
+     *
+     * @param value a recipient's priority setting
+     * @return the priority it names, null for automatic classification or an unknown value
+     */
+    @Nullable
+    public static XMPPMucPriority parse(@Nullable String value)
+    {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
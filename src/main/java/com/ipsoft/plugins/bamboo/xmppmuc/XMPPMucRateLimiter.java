@@ -0,0 +1,137 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets per room and per account, so bursts stay under the stanza rates Prosody and Openfire enforce.
+ * A message over the limit is never dropped and never waited for on the caller's thread: the limiter says how long
+ * until it may go, and the delivery worker parks the room's messages for that long while it keeps draining other rooms.
+ * How long each send was held back is recorded as the "throttle" operation in XMPPMucMetrics.
+ */
+public class XMPPMucRateLimiter
+{
+    private static final Logger log = Logger.getLogger(XMPPMucRateLimiter.class);
+
+    private static final int MAX_IDLE_BUCKETS = 10000;
+
+    private final XMPPMucMetrics metrics;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    public XMPPMucRateLimiter(XMPPMucMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     *
+     * @param server
+     * @param room
+     * @return 0 if the message may be sent now and was taken from both buckets, otherwise the nanoseconds until it
+     * may, nothing was taken
+     * Asks the room's bucket first and only takes from the account's once the room allows the send.
+     */
+    public long tryAcquire(XMPPMucConferenceInstantMessagingServerDefinition server, String room)
+    {
+        String account = server.getUsername() + "@" + server.getHost();
+        long now = System.nanoTime();
+        Bucket roomBucket = bucket(account + "/" + room, XMPPMucSettings.getRoomRatePerSecond(), XMPPMucSettings.getRoomBurst());
+        long waitNanos = roomBucket.tryReserve(now);
+        if (waitNanos == 0) {
+            waitNanos = bucket(account, XMPPMucSettings.getAccountRatePerSecond(), XMPPMucSettings.getAccountBurst()).tryReserve(now);
+            if (waitNanos > 0) {
+                //The account is over its rate, the room keeps its token for when it is not
+                roomBucket.release();
+            }
+        }
+        metrics.record(XMPPMucMetrics.Operation.THROTTLE, server, room, TimeUnit.NANOSECONDS.toMicros(waitNanos));
+        if (waitNanos > 0) {
+            log.debug("XMPP MUC throttling " + room + " for " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms");
+        }
+        return waitNanos;
+    }
+
+    private Bucket bucket(String key, double ratePerSecond, int burst)
+    {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_IDLE_BUCKETS) {
+                pruneIdle();
+            }
+            Bucket created = new Bucket(ratePerSecond, burst);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * A bucket that has refilled completely behaves exactly like a new one, so it can go.
+     */
+    private void pruneIdle()
+    {
+        long now = System.nanoTime();
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            if (it.next().isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Token bucket in its GCRA form: instead of counting tokens it keeps the theoretical arrival time of the next
+     * message, so reserving is one comparison under the bucket's monitor. Takes the time from its caller, so it can be
+     * tested without sleeping.
+     */
+    static final class Bucket
+    {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private long theoreticalArrival;
+        private boolean started;
+
+        Bucket(double ratePerSecond, int burst)
+        {
+            this.intervalNanos = ratePerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+            this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        }
+
+        /**
+         * @return 0 if a message may be sent now, which is then taken from the bucket, otherwise the nanoseconds the
+         * caller must wait before asking again, and nothing is taken
+         */
+        synchronized long tryReserve(long now)
+        {
+            if (intervalNanos == 0) {
+                return 0;
+            }
+            long arrival = started && theoreticalArrival - now > 0 ? theoreticalArrival : now;
+            long waitNanos = arrival - toleranceNanos - now;
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            started = true;
+            theoreticalArrival = arrival + intervalNanos;
+            return 0;
+        }
+
+        /**
+         * Puts back the message taken by the last successful tryReserve, it was not sent after all.
+         */
+        synchronized void release()
+        {
+            theoreticalArrival -= intervalNanos;
+        }
+
+        synchronized boolean isFull(long now)
+        {
+            return !started || theoreticalArrival - now <= 0;
+        }
+    }
+}
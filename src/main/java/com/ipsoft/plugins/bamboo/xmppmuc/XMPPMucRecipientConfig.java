@@ -0,0 +1,35 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parsed recipient configuration: the text of each child element of the stored XML, in document order.
+ * Immutable so parsed instances can be shared through XMPPMucRecipientConfigCodec's cache.
+ */
+public final class XMPPMucRecipientConfig
+{
+    private final Map<String, String> values;
+
+    public XMPPMucRecipientConfig(Map<String, String> values)
+    {
+        this.values = Collections.unmodifiableMap(new LinkedHashMap<String, String>(values));
+    }
+
+    /**
+     *
+     * @param name
+     * @return the element's text, empty if the element is present but empty, null if it is absent
+     */
+    @Nullable
+    public String get(String name) {
+        return values.get(name);
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,184 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the recipient configuration XML Bamboo stores for each notification.
+ * The format is the one the JDOM based code always wrote: a root element named after XMPPMucNotificationRecipient
+ * with one text-only child per field. Reading is a single StAX pass and parsed configurations are cached by their
+ * text, since Bamboo re-initializes recipients from the same strings over and over.
+ */
+public final class XMPPMucRecipientConfigCodec
+{
+    private static final String ROOT = XMPPMucNotificationRecipient.class.getName();
+    private static final String LINE_SEPARATOR = "\r\n";
+    private static final String INDENT = "  ";
+    private static final int CACHE_SIZE = 1000;
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static final Cache<String, XMPPMucRecipientConfig> PARSED = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
+    private XMPPMucRecipientConfigCodec() {
+    }
+
+    /**
+     *
+     * @param configurationData
+     * @return the parsed configuration, shared with every other caller that passed the same text
+     * @throws IllegalArgumentException if the text is not well-formed XML
+     */
+    public static XMPPMucRecipientConfig decode(String configurationData)
+    {
+        XMPPMucRecipientConfig config = PARSED.getIfPresent(configurationData);
+        if (config == null) {
+            config = parse(configurationData);
+            PARSED.put(configurationData, config);
+        }
+        return config;
+    }
+
+    /**
+     *
+     * @param values element name to text, null values are written as empty elements
+     * @return the configuration XML, formatted the way JDOM's pretty printer did so stored configs stay stable:
+     * text is trimmed of leading and trailing whitespace, and whitespace-only text is written as an empty element
+     */
+    public static String encode(Map<String, String> values)
+    {
+        StringBuilder xml = new StringBuilder(128);
+        xml.append('<').append(ROOT).append('>').append(LINE_SEPARATOR);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            xml.append(INDENT).append('<').append(entry.getKey());
+            String text = trim(entry.getValue());
+            if (text == null || text.isEmpty()) {
+                xml.append(" />");
+            } else {
+                xml.append('>');
+                escape(text, xml);
+                xml.append("</").append(entry.getKey()).append('>');
+            }
+            xml.append(LINE_SEPARATOR);
+        }
+        xml.append("</").append(ROOT).append('>').append(LINE_SEPARATOR);
+        return xml.toString();
+    }
+
+    private static XMPPMucRecipientConfig parse(String configurationData)
+    {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        XMLStreamReader reader = null;
+        try {
+            reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(configurationData));
+            int depth = 0;
+            String field = null;
+            StringBuilder text = new StringBuilder();
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2) {
+                            field = reader.getLocalName();
+                            text.setLength(0);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (depth == 2) {
+                            text.append(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 2 && field != null) {
+                            values.put(field, text.toString());
+                            field = null;
+                        }
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Malformed XMPP MUC recipient configuration: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    //Nothing left to release
+                }
+            }
+        }
+        return new XMPPMucRecipientConfig(values);
+    }
+
+    /**
+     * Trims XML whitespace from both ends, as JDOM's TRIM text mode did; whitespace inside the text is kept.
+     */
+    private static String trim(String text)
+    {
+        if (text == null) {
+            return null;
+        }
+        int start = 0;
+        int end = text.length();
+        while (start < end && isXmlWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && isXmlWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(start, end);
+    }
+
+    private static boolean isXmlWhitespace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static void escape(String text, StringBuilder out)
+    {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '\r':
+                    out.append("&#xD;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        //Configuration is plain data, never resolve DTDs or external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
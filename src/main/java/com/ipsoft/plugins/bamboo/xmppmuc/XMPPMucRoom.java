@@ -0,0 +1,149 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * One room of a recipient's room list: its JID and the password to join it with, if any.
+ * The list is written one room per line or comma separated. Rooms needing their own password are given it in a
+ * separate field, one room@service password line each, so passwords never show with the room list and may hold any
+ * character but a line break; rooms without one use the recipient's room password.
+ */
+public final class XMPPMucRoom
+{
+    private static final Pattern SEPARATORS = Pattern.compile("[,\\r\\n]+");
+    private static final Pattern LINES = Pattern.compile("\\r\\n|\\r|\\n");
+
+    private final String jid;
+    @Nullable
+    private final String password;
+
+    public XMPPMucRoom(String jid, @Nullable String password)
+    {
+        this.jid = jid;
+        this.password = password;
+    }
+
+    /**
+     *
+     * @param rooms the recipient's room field
+     * @param defaultPassword the recipient's room password field
+     * @param roomPasswords the recipient's per-room password field
+     * @return the rooms in the order given, each JID once, empty if there are none
+     */
+    public static List<XMPPMucRoom> parseList(@Nullable String rooms, @Nullable String defaultPassword, @Nullable String roomPasswords)
+    {
+        if (rooms == null || rooms.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<String, String> passwords = parsePasswords(roomPasswords);
+        //Most recipients name a single room, skip the split
+        if (rooms.indexOf(',') < 0 && rooms.indexOf('\n') < 0 && rooms.indexOf('\r') < 0) {
+            return Collections.singletonList(room(rooms.trim(), defaultPassword, passwords));
+        }
+
+        Map<String, XMPPMucRoom> parsed = new LinkedHashMap<String, XMPPMucRoom>();
+        for (String entry : SEPARATORS.split(rooms)) {
+            String trimmed = entry.trim();
+            if (!trimmed.isEmpty() && !parsed.containsKey(trimmed)) {
+                parsed.put(trimmed, room(trimmed, defaultPassword, passwords));
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<XMPPMucRoom>(parsed.values()));
+    }
+
+    /**
+     *
+     * @param roomPasswords the recipient's per-room password field
+     * @return each room's own password by JID; lines without a password are left out, see invalidPasswordLine
+     */
+    public static Map<String, String> parsePasswords(@Nullable String roomPasswords)
+    {
+        if (roomPasswords == null || roomPasswords.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> passwords = new LinkedHashMap<String, String>();
+        for (String line : LINES.split(roomPasswords)) {
+            String entry = trimLeading(line);
+            int separator = indexOfWhitespace(entry);
+            if (separator > 0 && separator < entry.length() - 1) {
+                //Everything after the one separating blank is the password, blanks included
+                passwords.put(entry.substring(0, separator), entry.substring(separator + 1));
+            }
+        }
+        return passwords;
+    }
+
+    /**
+     *
+     * @param roomPasswords the recipient's per-room password field
+     * @return the number, from 1, of the first non-blank line that is not a room JID, a blank and a password, 0 if none
+     */
+    public static int invalidPasswordLine(@Nullable String roomPasswords)
+    {
+        if (roomPasswords == null) {
+            return 0;
+        }
+        String[] lines = LINES.split(roomPasswords);
+        for (int i = 0; i < lines.length; i++) {
+            String entry = trimLeading(lines[i]);
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int separator = indexOfWhitespace(entry);
+            if (separator <= 0 || separator == entry.length() - 1) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static XMPPMucRoom room(String jid, @Nullable String defaultPassword, Map<String, String> passwords)
+    {
+        String password = passwords.get(jid);
+        return new XMPPMucRoom(jid, password != null ? password : defaultPassword);
+    }
+
+    private static String trimLeading(String line)
+    {
+        int start = 0;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        return line.substring(start);
+    }
+
+    private static int indexOfWhitespace(String entry)
+    {
+        for (int i = 0; i < entry.length(); i++) {
+            if (Character.isWhitespace(entry.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the JID looks like roomname@conference-server
+     */
+    public boolean isValid()
+    {
+        int at = jid.indexOf('@');
+        return at > 0 && at < jid.length() - 1;
+    }
+
+    public String getJid() {
+        return jid;
+    }
+
+    @Nullable
+    public String getPassword() {
+        return password;
+    }
+}
@@ -0,0 +1,293 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.commons.lang.RandomStringUtils;
+import org.apache.log4j.Logger;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smackx.muc.DefaultUserStatusListener;
+import org.jivesoftware.smackx.muc.DiscussionHistory;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+import org.jivesoftware.smackx.muc.MultiUserChatManager;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the plugin joined to every room it delivers to, under a stable nickname.
+ * Rooms are cached by server, room JID, password and nickname; idle rooms are left on a timer and a room is
+ * rejoined on next use after the occupant was kicked, banned or the pooled connection was replaced.
+ */
+public class XMPPMucRoomManager implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucRoomManager.class);
+
+    public static final String DEFAULT_NICKNAME = "Bamboo Test Agent";
+
+    private final XMPPMucMetrics metrics;
+    private final ConcurrentMap<RoomKey, JoinedRoom> rooms = new ConcurrentHashMap<RoomKey, JoinedRoom>();
+    private final ScheduledExecutorService evictor;
+
+    public XMPPMucRoomManager(XMPPMucMetrics metrics)
+    {
+        this.metrics = metrics;
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "xmppmuc-room-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdleRooms();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     *
+     * @param server
+     * @param connection
+     * @param room
+     * @param roompw
+     * @param nickname
+     * @return MultiUserChat
+     * Returns the joined room for the given connection, joining it (without history) only if not already in it.
+     */
+    public MultiUserChat getRoom(XMPPMucConferenceInstantMessagingServerDefinition server,
+                                 XMPPConnection connection,
+                                 String room,
+                                 String roompw,
+                                 String nickname) throws SmackException, XMPPException
+    {
+        String stableNickname = (nickname != null && !nickname.isEmpty()) ? nickname : DEFAULT_NICKNAME;
+        RoomKey key = new RoomKey(server, room, roompw, stableNickname);
+        while (true) {
+            JoinedRoom joined = rooms.get(key);
+            if (joined == null) {
+                JoinedRoom created = new JoinedRoom(key, metrics);
+                joined = rooms.putIfAbsent(key, created);
+                if (joined == null) {
+                    joined = created;
+                }
+            }
+            MultiUserChat muc = joined.get(connection);
+            if (muc != null) {
+                return muc;
+            }
+            //Evicted while we looked it up, take or create its replacement
+            rooms.remove(key, joined);
+        }
+    }
+
+    /**
+     *
+     * @param server
+     * Forgets every room joined through the server's connection, used when that connection is invalidated.
+     */
+    public void evictServer(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        for (Iterator<Map.Entry<RoomKey, JoinedRoom>> it = rooms.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<RoomKey, JoinedRoom> entry = it.next();
+            if (entry.getKey().server.equals(server)) {
+                it.remove();
+                entry.getValue().forget();
+            }
+        }
+    }
+
+    void evictIdleRooms()
+    {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(XMPPMucSettings.getRoomIdleMinutes());
+        for (Map.Entry<RoomKey, JoinedRoom> entry : rooms.entrySet()) {
+            //Decided under the room's monitor, so a notification joining it right now keeps it
+            if (entry.getValue().leaveIfIdle(cutoff)) {
+                rooms.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Leaves every room, called when the plugin is disabled or uninstalled.
+     */
+    public void destroy()
+    {
+        evictor.shutdownNow();
+        for (Iterator<JoinedRoom> it = rooms.values().iterator(); it.hasNext(); ) {
+            JoinedRoom joined = it.next();
+            it.remove();
+            joined.leave();
+        }
+    }
+
+    /**
+     * Identity of a room membership: the same room joined under another nickname or password is a separate entry.
+     */
+    private static final class RoomKey
+    {
+        private final XMPPMucConferenceInstantMessagingServerDefinition server;
+        private final String room;
+        private final String roompw;
+        private final String nickname;
+
+        RoomKey(XMPPMucConferenceInstantMessagingServerDefinition server, String room, String roompw, String nickname)
+        {
+            this.server = server;
+            this.room = room;
+            this.roompw = (roompw != null && !roompw.isEmpty()) ? roompw : null;
+            this.nickname = nickname;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RoomKey)) {
+                return false;
+            }
+            RoomKey that = (RoomKey) o;
+            return server.equals(that.server)
+                    && room.equals(that.room)
+                    && (roompw != null ? roompw.equals(that.roompw) : that.roompw == null)
+                    && nickname.equals(that.nickname);
+        }
+
+        public int hashCode() {
+            int result = server.hashCode();
+            result = 31 * result + room.hashCode();
+            result = 31 * result + (roompw != null ? roompw.hashCode() : 0);
+            result = 31 * result + nickname.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * A cached membership, guarded by its own monitor so concurrent senders to one room cause a single join.
+     */
+    private static class JoinedRoom
+    {
+        private final RoomKey key;
+        private final XMPPMucMetrics metrics;
+        private XMPPConnection connection;
+        private MultiUserChat muc;
+        private MultiUserChat listening;
+        private volatile boolean kicked;
+        private boolean evicted;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        JoinedRoom(RoomKey key, XMPPMucMetrics metrics)
+        {
+            this.key = key;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Returns null once evicted, so a caller that looked this membership up before it was evicted does not rejoin
+         * a room that is no longer cached and would never be left again.
+         */
+        synchronized MultiUserChat get(XMPPConnection current) throws SmackException, XMPPException
+        {
+            if (evicted) {
+                return null;
+            }
+            lastUsed = System.currentTimeMillis();
+            if (muc != null && connection == current && current.isConnected() && !kicked && muc.isJoined()) {
+                return muc;
+            }
+
+            MultiUserChat chat = MultiUserChatManager.getInstanceFor(current).getMultiUserChat(key.room);
+            //No history, we only ever send into the room
+            DiscussionHistory history = new DiscussionHistory();
+            history.setMaxStanzas(0);
+            long start = metrics.start();
+            try {
+                join(chat, history, current);
+            } catch (SmackException e) {
+                metrics.failure(XMPPMucMetrics.Operation.JOIN, key.server, key.room, start, e);
+                throw e;
+            } catch (XMPPException e) {
+                metrics.failure(XMPPMucMetrics.Operation.JOIN, key.server, key.room, start, e);
+                throw e;
+            }
+            metrics.success(XMPPMucMetrics.Operation.JOIN, key.server, key.room, start);
+
+            kicked = false;
+            if (chat != listening) {
+                listening = chat;
+                chat.addUserStatusListener(new DefaultUserStatusListener() {
+                    public void kicked(String actor, String reason) {
+                        log.info("XMPP MUC kicked from " + key.room + ", will rejoin on next notification");
+                        kicked = true;
+                    }
+
+                    public void banned(String actor, String reason) {
+                        log.info("XMPP MUC banned from " + key.room);
+                        kicked = true;
+                    }
+
+                    public void membershipRevoked() {
+                        kicked = true;
+                    }
+                });
+            }
+            log.info("XMPP MUC joined " + key.room + " as " + chat.getNickname());
+            connection = current;
+            muc = chat;
+            return muc;
+        }
+
+        private void join(MultiUserChat chat, DiscussionHistory history, XMPPConnection current) throws SmackException, XMPPException
+        {
+            try {
+                chat.join(key.nickname, key.roompw, history, current.getPacketReplyTimeout());
+            } catch (XMPPException.XMPPErrorException e) {
+                //Someone already owns our nickname, fall back to a unique one for this membership
+                if (e.getXMPPError() == null || e.getXMPPError().getCondition() != XMPPError.Condition.conflict) {
+                    throw e;
+                }
+                String code = RandomStringUtils.randomAlphanumeric(4).toUpperCase();
+                chat.join(key.nickname + " " + code, key.roompw, history, current.getPacketReplyTimeout());
+            }
+        }
+
+        synchronized void forget()
+        {
+            evicted = true;
+            connection = null;
+            muc = null;
+        }
+
+        synchronized void leave()
+        {
+            if (muc != null && connection != null && connection.isConnected() && muc.isJoined()) {
+                try {
+                    muc.leave();
+                    log.info("XMPP MUC left idle room " + key.room);
+                } catch (SmackException.NotConnectedException e) {
+                    log.trace(e.getStackTrace());
+                }
+            }
+            forget();
+        }
+
+        synchronized boolean leaveIfIdle(long cutoff)
+        {
+            if (lastUsed >= cutoff) {
+                return false;
+            }
+            leave();
+            return true;
+        }
+    }
+}
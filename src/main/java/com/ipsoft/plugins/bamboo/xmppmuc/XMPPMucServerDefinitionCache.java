@@ -0,0 +1,139 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.instantmessagingserver.InstantMessagingServerDefinition;
+import com.atlassian.bamboo.instantmessagingserver.InstantMessagingServerManager;
+import com.atlassian.spring.container.ContainerManager;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plugin-scoped snapshot of Bamboo's IM server definitions.
+ * The snapshot is refreshed in the background every -Dxmppmuc.servers.refreshSeconds, so the delivery path never
+ * reaches InstantMessagingServerManager or the database. When a refresh sees a changed definition, everything cached
+ * against the old one (connections, rooms, discovered services) is dropped.
+ */
+public class XMPPMucServerDefinitionCache implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucServerDefinitionCache.class);
+
+    private final XMPPMucConnectionManager connectionManager;
+    private final XMPPMucRoomManager roomManager;
+    private final XMPPMucServiceDiscoveryCache discoveryCache;
+    private final ScheduledExecutorService refresher;
+    private InstantMessagingServerManager instantMessagingServerManager;
+    private volatile List<XMPPMucConferenceInstantMessagingServerDefinition> servers;
+
+    public XMPPMucServerDefinitionCache(XMPPMucConnectionManager connectionManager,
+                                        XMPPMucRoomManager roomManager,
+                                        XMPPMucServiceDiscoveryCache discoveryCache)
+    {
+        this.connectionManager = connectionManager;
+        this.roomManager = roomManager;
+        this.discoveryCache = discoveryCache;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "xmppmuc-server-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, XMPPMucSettings.getServerRefreshSeconds());
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    log.warn("XMPP MUC unable to refresh IM server definitions", e);
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return every configured IM server, in Bamboo's order; the same list instance until the configuration changes
+     */
+    public List<XMPPMucConferenceInstantMessagingServerDefinition> getServers()
+    {
+        List<XMPPMucConferenceInstantMessagingServerDefinition> snapshot = servers;
+        if (snapshot == null) {
+            snapshot = refresh();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Reloads the definitions from Bamboo now, dropping anything cached for definitions that changed or went away.
+     */
+    public synchronized List<XMPPMucConferenceInstantMessagingServerDefinition> refresh()
+    {
+        Collection messagingServers = this.getInstantMessagingServerManager().getAllInstantMessagingServers();
+        List<XMPPMucConferenceInstantMessagingServerDefinition> loaded = new ArrayList<XMPPMucConferenceInstantMessagingServerDefinition>(messagingServers.size());
+        for (Object messagingServer : messagingServers) {
+            loaded.add(new XMPPMucConferenceInstantMessagingServerDefinition((InstantMessagingServerDefinition) messagingServer));
+        }
+        loaded = Collections.unmodifiableList(loaded);
+
+        List<XMPPMucConferenceInstantMessagingServerDefinition> previous = servers;
+        if (previous != null && isUnchanged(previous, loaded)) {
+            //Same instance, so XMPPMucServerRouter keeps its ring
+            return previous;
+        }
+        if (previous != null) {
+            log.info("XMPP MUC IM server configuration changed, dropping cached connections");
+            for (XMPPMucConferenceInstantMessagingServerDefinition server : previous) {
+                if (!loaded.contains(server)) {
+                    connectionManager.invalidate(server);
+                    roomManager.evictServer(server);
+                }
+            }
+            discoveryCache.clear();
+        }
+        servers = loaded;
+        return loaded;
+    }
+
+    /**
+     * Server definitions compare by connection settings only, names are compared too because rooms pin to them.
+     */
+    private static boolean isUnchanged(List<XMPPMucConferenceInstantMessagingServerDefinition> previous,
+                                       List<XMPPMucConferenceInstantMessagingServerDefinition> loaded)
+    {
+        if (!previous.equals(loaded)) {
+            return false;
+        }
+        for (int i = 0; i < previous.size(); i++) {
+            String name = previous.get(i).getName();
+            if (name != null ? !name.equals(loaded.get(i).getName()) : loaded.get(i).getName() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private InstantMessagingServerManager getInstantMessagingServerManager() {
+        if (this.instantMessagingServerManager == null) {
+            this.instantMessagingServerManager = (InstantMessagingServerManager) ContainerManager.getComponent("instantMessagingServerManager");
+        }
+        return this.instantMessagingServerManager;
+    }
+
+    public void setInstantMessagingServerManager(InstantMessagingServerManager instantMessagingServerManager) {
+        this.instantMessagingServerManager = instantMessagingServerManager;
+    }
+
+    public void destroy()
+    {
+        refresher.shutdownNow();
+    }
+}
@@ -0,0 +1,214 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads rooms over every configured IM server (account) with a consistent hash ring, so each room is always
+ * posted to by the same account, keeping its messages in order, and adding or removing a server only moves the
+ * rooms that hashed to it. A server that could not be reached is passed over for -Dxmppmuc.servers.retrySeconds,
+ * its rooms fail over to the next server on the ring in the meantime.
+ */
+public class XMPPMucServerRouter
+{
+    private static final Logger log = Logger.getLogger(XMPPMucServerRouter.class);
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final XMPPMucServerDefinitionCache serverDefinitionCache;
+    private final ConcurrentMap<XMPPMucConferenceInstantMessagingServerDefinition, Long> unreachableUntil =
+            new ConcurrentHashMap<XMPPMucConferenceInstantMessagingServerDefinition, Long>();
+    private volatile Ring ring;
+
+    public XMPPMucServerRouter(XMPPMucServerDefinitionCache serverDefinitionCache)
+    {
+        this.serverDefinitionCache = serverDefinitionCache;
+    }
+
+    /**
+     *
+     * @param room
+     * @param pin server the recipient is pinned to, see findServer(), or null
+     * @return servers to try for the room, in order: its own server on the ring followed by the others to fail over
+     * to, reachable ones first. A pinned room only ever gets its pinned server. Empty if none is configured.
+     */
+    public List<XMPPMucConferenceInstantMessagingServerDefinition> route(String room, @Nullable String pin)
+    {
+        List<XMPPMucConferenceInstantMessagingServerDefinition> servers = serverDefinitionCache.getServers();
+        if (pin != null && !pin.isEmpty()) {
+            XMPPMucConferenceInstantMessagingServerDefinition pinned = findServer(servers, pin);
+            if (pinned == null) {
+                log.error("XMPP MUC no IM server named " + pin + " for " + room);
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(pinned);
+        }
+        if (servers.size() <= 1) {
+            return servers;
+        }
+
+        List<XMPPMucConferenceInstantMessagingServerDefinition> ordered = ringFor(servers).walk(room);
+        List<XMPPMucConferenceInstantMessagingServerDefinition> unreachable = null;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ordered.size(); ) {
+            XMPPMucConferenceInstantMessagingServerDefinition server = ordered.get(i);
+            if (isUnreachable(server, now)) {
+                if (unreachable == null) {
+                    unreachable = new ArrayList<XMPPMucConferenceInstantMessagingServerDefinition>();
+                }
+                unreachable.add(ordered.remove(i));
+            } else {
+                i++;
+            }
+        }
+        //Still worth a try when everything is down, the retry period may just not be over yet
+        if (unreachable != null) {
+            ordered.addAll(unreachable);
+        }
+        return ordered;
+    }
+
+    /**
+     *
+     * @param server
+     * Records that the server could not be reached, rooms are routed around it until the retry period is over.
+     */
+    public void markUnreachable(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        long until = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(XMPPMucSettings.getServerRetrySeconds());
+        if (unreachableUntil.put(server, until) == null) {
+            log.info("XMPP MUC IM server " + server.getHost() + " unreachable, failing its rooms over to other servers");
+        }
+    }
+
+    /**
+     *
+     * @param server
+     * Records a successful delivery, routing rooms back to the server straight away.
+     */
+    public void markReachable(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        if (unreachableUntil.remove(server) != null) {
+            log.info("XMPP MUC IM server " + server.getHost() + " reachable again");
+        }
+    }
+
+    private boolean isUnreachable(XMPPMucConferenceInstantMessagingServerDefinition server, long now)
+    {
+        Long until = unreachableUntil.get(server);
+        return until != null && until > now;
+    }
+
+    /**
+     *
+     * @param servers
+     * @param pin
+     * @return the server whose name in Bamboo's IM server administration or whose account JID (user@host) is the pin
+     */
+    @Nullable
+    public static XMPPMucConferenceInstantMessagingServerDefinition findServer(List<XMPPMucConferenceInstantMessagingServerDefinition> servers, String pin)
+    {
+        String wanted = pin.trim();
+        for (XMPPMucConferenceInstantMessagingServerDefinition server : servers) {
+            if (wanted.equalsIgnoreCase(server.getName())
+                    || wanted.equalsIgnoreCase(server.getUsername() + "@" + server.getHost())) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private Ring ringFor(List<XMPPMucConferenceInstantMessagingServerDefinition> servers)
+    {
+        Ring current = ring;
+        //The cache hands out the same list until the configuration changes
+        if (current == null || current.servers != servers) {
+            current = new Ring(servers);
+            ring = current;
+        }
+        return current;
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, so similar room names land far apart on the ring.
+     */
+    static long hash(String value)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Immutable ring for one snapshot of the server list, each server placed at VIRTUAL_NODES points.
+     */
+    private static final class Ring
+    {
+        private final List<XMPPMucConferenceInstantMessagingServerDefinition> servers;
+        private final long[] points;
+        private final XMPPMucConferenceInstantMessagingServerDefinition[] owners;
+
+        Ring(List<XMPPMucConferenceInstantMessagingServerDefinition> servers)
+        {
+            this.servers = servers;
+            TreeMap<Long, XMPPMucConferenceInstantMessagingServerDefinition> nodes = new TreeMap<Long, XMPPMucConferenceInstantMessagingServerDefinition>();
+            for (XMPPMucConferenceInstantMessagingServerDefinition server : servers) {
+                //Keyed on the account, not the database id, so re-creating a server in Bamboo keeps its rooms
+                String identity = server.getUsername() + "@" + server.getHost() + ":" + server.getPort();
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    nodes.put(hash(identity + "#" + i), server);
+                }
+            }
+            this.points = new long[nodes.size()];
+            this.owners = new XMPPMucConferenceInstantMessagingServerDefinition[nodes.size()];
+            int i = 0;
+            for (Map.Entry<Long, XMPPMucConferenceInstantMessagingServerDefinition> node : nodes.entrySet()) {
+                points[i] = node.getKey();
+                owners[i] = node.getValue();
+                i++;
+            }
+        }
+
+        /**
+         * @return every server once, in the order met walking clockwise from the room's point
+         */
+        List<XMPPMucConferenceInstantMessagingServerDefinition> walk(String room)
+        {
+            List<XMPPMucConferenceInstantMessagingServerDefinition> ordered =
+                    new ArrayList<XMPPMucConferenceInstantMessagingServerDefinition>(servers.size());
+            if (points.length == 0) {
+                return ordered;
+            }
+            int start = Arrays.binarySearch(points, hash(room != null ? room : ""));
+            if (start < 0) {
+                start = -start - 1;
+            }
+            for (int i = 0; i < points.length && ordered.size() < servers.size(); i++) {
+                XMPPMucConferenceInstantMessagingServerDefinition owner = owners[(start + i) % points.length];
+                if (!ordered.contains(owner)) {
+                    ordered.add(owner);
+                }
+            }
+            return ordered;
+        }
+    }
+}
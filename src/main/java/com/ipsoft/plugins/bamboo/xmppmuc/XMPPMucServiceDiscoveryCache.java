@@ -0,0 +1,121 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.apache.log4j.Logger;
+
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smackx.muc.MultiUserChatManager;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the MUC service names each server advertises, so the disco#items and disco#info round-trips behind
+ * MultiUserChatManager.getServiceNames() are paid once per TTL instead of once per notification.
+ * An entry is only valid for the connection it was discovered on; a replaced connection rediscovers.
+ */
+public class XMPPMucServiceDiscoveryCache
+{
+    private static final Logger log = Logger.getLogger(XMPPMucServiceDiscoveryCache.class);
+
+    private final XMPPMucMetrics metrics;
+    private final ConcurrentMap<XMPPMucConferenceInstantMessagingServerDefinition, Services> services =
+            new ConcurrentHashMap<XMPPMucConferenceInstantMessagingServerDefinition, Services>();
+
+    public XMPPMucServiceDiscoveryCache(XMPPMucMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     *
+     * @param server
+     * @param connection
+     * @param room
+     * @return true if the server offers a MUC service we can join the room through
+     * When the room JID's domain is one of the cached MUC services, or the check is turned off with
+     * -Dxmppmuc.disco.enabled=false, this answers without any discovery at all.
+     */
+    public boolean hasMucService(XMPPMucConferenceInstantMessagingServerDefinition server, XMPPConnection connection, String room)
+            throws SmackException.NoResponseException, XMPPException.XMPPErrorException, SmackException.NotConnectedException
+    {
+        if (!XMPPMucSettings.isDiscoveryCheckEnabled()) {
+            return true;
+        }
+
+        String domain = room != null && room.indexOf('@') >= 0 ? room.substring(room.indexOf('@') + 1) : null;
+        Services cached = services.get(server);
+        if (cached != null && !cached.isExpired()) {
+            //Known MUC service domain, nothing can have changed that discovery would tell us
+            if (domain != null && cached.names.contains(domain)) {
+                return true;
+            }
+            if (cached.connection == connection) {
+                return !cached.names.isEmpty();
+            }
+        }
+
+        List<String> names;
+        long start = metrics.start();
+        try {
+            names = MultiUserChatManager.getInstanceFor(connection).getServiceNames();
+        } catch (SmackException.NoResponseException e) {
+            metrics.failure(XMPPMucMetrics.Operation.DISCOVERY, server, null, start, e);
+            throw e;
+        } catch (XMPPException.XMPPErrorException e) {
+            metrics.failure(XMPPMucMetrics.Operation.DISCOVERY, server, null, start, e);
+            throw e;
+        } catch (SmackException.NotConnectedException e) {
+            metrics.failure(XMPPMucMetrics.Operation.DISCOVERY, server, null, start, e);
+            throw e;
+        }
+        metrics.success(XMPPMucMetrics.Operation.DISCOVERY, server, null, start);
+        cached = new Services(connection, names);
+        services.put(server, cached);
+        log.debug("XMPP MUC discovered services " + cached.names + " on " + server.getHost());
+        return !cached.names.isEmpty();
+    }
+
+    /**
+     *
+     * @param server
+     * Forgets what was discovered for the server, used when its connection is invalidated.
+     */
+    public void evict(XMPPMucConferenceInstantMessagingServerDefinition server)
+    {
+        services.remove(server);
+    }
+
+    /**
+     * Forgets everything, used when the IM server configuration changes.
+     */
+    public void clear()
+    {
+        services.clear();
+    }
+
+    private static final class Services
+    {
+        private final XMPPConnection connection;
+        private final Set<String> names;
+        private final long expiresAt;
+
+        Services(XMPPConnection connection, List<String> names)
+        {
+            this.connection = connection;
+            this.names = names != null ? Collections.unmodifiableSet(new HashSet<String>(names)) : Collections.<String>emptySet();
+            this.expiresAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(XMPPMucSettings.getDiscoveryTtlMinutes());
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
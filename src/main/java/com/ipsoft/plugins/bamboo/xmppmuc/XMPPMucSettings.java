@@ -0,0 +1,253 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+/**
+ * Plugin tuning knobs, read from JVM system properties so they can be set in Bamboo's setenv without a UI.
+ * Values are read on access; sizing values such as queue capacity are only picked up when the plugin is (re)enabled.
+ */
+public final class XMPPMucSettings
+{
+    private XMPPMucSettings() {
+    }
+
+    /**
+     * @return minutes a joined room may stay unused before it is left, -Dxmppmuc.room.idleMinutes
+     */
+    public static long getRoomIdleMinutes() {
+        return Long.getLong("xmppmuc.room.idleMinutes", 10L);
+    }
+
+    /**
+     * @return notifications of one priority the delivery queue holds before the overflow policy applies, -Dxmppmuc.queue.capacity
+     */
+    public static int getQueueCapacity() {
+        return Integer.getInteger("xmppmuc.queue.capacity", 1000);
+    }
+
+    /**
+     * @return delivery worker threads, -Dxmppmuc.queue.workers
+     */
+    public static int getQueueWorkers() {
+        return Integer.getInteger("xmppmuc.queue.workers", 4);
+    }
+
+    /**
+     * @return what to do when the queue is full, -Dxmppmuc.queue.overflow=BLOCK|DROP_OLDEST|DROP_NEWEST; the default
+     * DROP_NEWEST keeps Bamboo's notification thread from waiting by moving the message to the outbox, BLOCK makes it
+     * wait for the workers instead
+     */
+    public static XMPPMucDeliveryQueue.OverflowPolicy getQueueOverflowPolicy() {
+        String value = System.getProperty("xmppmuc.queue.overflow");
+        if (value != null) {
+            try {
+                return XMPPMucDeliveryQueue.OverflowPolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                //Fall through to the default
+            }
+        }
+        return XMPPMucDeliveryQueue.OverflowPolicy.DROP_NEWEST;
+    }
+
+    /**
+     * @return messages each delivery worker takes from its urgent, normal and low lanes per round while all three are
+     * backed up, -Dxmppmuc.queue.weights=8,4,1
+     */
+    public static int[] getQueueWeights() {
+        int[] weights = {8, 4, 1};
+        String value = System.getProperty("xmppmuc.queue.weights");
+        if (value != null) {
+            String[] parts = value.split(",");
+            for (int i = 0; i < weights.length && i < parts.length; i++) {
+                try {
+                    weights[i] = Math.max(1, Integer.parseInt(parts[i].trim()));
+                } catch (NumberFormatException e) {
+                    //Keep the default for this lane
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @return minutes discovered MUC service names are trusted, -Dxmppmuc.disco.ttlMinutes
+     */
+    public static long getDiscoveryTtlMinutes() {
+        return Long.getLong("xmppmuc.disco.ttlMinutes", 60L);
+    }
+
+    /**
+     * @return false to skip checking for a MUC service before joining, -Dxmppmuc.disco.enabled
+     */
+    public static boolean isDiscoveryCheckEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty("xmppmuc.disco.enabled"));
+    }
+
+    /**
+     * @return seconds between reloads of Bamboo's IM server definitions, -Dxmppmuc.servers.refreshSeconds
+     */
+    public static long getServerRefreshSeconds() {
+        return Long.getLong("xmppmuc.servers.refreshSeconds", 30L);
+    }
+
+    /**
+     * @return seconds an unreachable IM server is passed over before rooms are routed back to it, -Dxmppmuc.servers.retrySeconds
+     */
+    public static long getServerRetrySeconds() {
+        return Long.getLong("xmppmuc.servers.retrySeconds", 30L);
+    }
+
+    /**
+     * @return messages per second sent into one room before they are delayed, 0 for no limit, -Dxmppmuc.rate.roomPerSecond
+     */
+    public static double getRoomRatePerSecond() {
+        return getDouble("xmppmuc.rate.roomPerSecond", 5);
+    }
+
+    /**
+     * @return messages a quiet room may take at once before its rate applies, -Dxmppmuc.rate.roomBurst
+     */
+    public static int getRoomBurst() {
+        return Integer.getInteger("xmppmuc.rate.roomBurst", 10);
+    }
+
+    /**
+     * @return messages per second sent by one account over all its rooms, 0 for no limit, -Dxmppmuc.rate.accountPerSecond
+     */
+    public static double getAccountRatePerSecond() {
+        return getDouble("xmppmuc.rate.accountPerSecond", 20);
+    }
+
+    /**
+     * @return messages an idle account may send at once before its rate applies, -Dxmppmuc.rate.accountBurst
+     */
+    public static int getAccountBurst() {
+        return Integer.getInteger("xmppmuc.rate.accountBurst", 50);
+    }
+
+    /**
+     * @return directory for the outbox journal, -Dxmppmuc.outbox.dir, null for xmppmuc-outbox under the Bamboo home
+     */
+    public static String getOutboxDirectory() {
+        return System.getProperty("xmppmuc.outbox.dir");
+    }
+
+    /**
+     * @return size at which the outbox starts a new segment file, -Dxmppmuc.outbox.segmentBytes
+     */
+    public static long getOutboxSegmentBytes() {
+        return Long.getLong("xmppmuc.outbox.segmentBytes", 8L * 1024 * 1024);
+    }
+
+    /**
+     * @return most disk the outbox may use, further notifications are dropped, -Dxmppmuc.outbox.maxBytes
+     */
+    public static long getOutboxMaxBytes() {
+        return Long.getLong("xmppmuc.outbox.maxBytes", 1024L * 1024 * 1024);
+    }
+
+    /**
+     * @return milliseconds between fsyncs of the outbox, the most a crash can lose, -Dxmppmuc.outbox.fsyncMillis
+     */
+    public static long getOutboxFsyncMillis() {
+        return Long.getLong("xmppmuc.outbox.fsyncMillis", 100L);
+    }
+
+    /**
+     * @return seconds between attempts to replay the outbox, -Dxmppmuc.outbox.replaySeconds
+     */
+    public static long getOutboxReplaySeconds() {
+        return Long.getLong("xmppmuc.outbox.replaySeconds", 10L);
+    }
+
+    /**
+     * @return true to keep sessions alive with pings, resume them with XEP-0198 and reconnect them in the background,
+     * -Dxmppmuc.session.longLived
+     */
+    public static boolean isLongLivedSession() {
+        return Boolean.getBoolean("xmppmuc.session.longLived");
+    }
+
+    /**
+     * @return seconds between XEP-0199 pings on an idle long-lived session, -Dxmppmuc.session.pingSeconds
+     */
+    public static int getPingIntervalSeconds() {
+        return Integer.getInteger("xmppmuc.session.pingSeconds", 60);
+    }
+
+    /**
+     * @return seconds a connection of a default session may sit idle before it is pinged ahead of its next use, 0 to
+     * never ping, -Dxmppmuc.session.idlePingSeconds
+     */
+    public static int getIdlePingSeconds() {
+        return Integer.getInteger("xmppmuc.session.idlePingSeconds", 60);
+    }
+
+    /**
+     * @return seconds we ask the server to keep a dropped long-lived session resumable, -Dxmppmuc.session.resumptionSeconds
+     */
+    public static int getResumptionSeconds() {
+        return Integer.getInteger("xmppmuc.session.resumptionSeconds", 300);
+    }
+
+    /**
+     * @return first delay before reconnecting a long-lived session, doubled on every failure, -Dxmppmuc.reconnect.baseMillis
+     */
+    public static long getReconnectBaseMillis() {
+        return Long.getLong("xmppmuc.reconnect.baseMillis", 1000L);
+    }
+
+    /**
+     * @return longest delay between reconnect attempts, -Dxmppmuc.reconnect.maxMillis
+     */
+    public static long getReconnectMaxMillis() {
+        return Long.getLong("xmppmuc.reconnect.maxMillis", 120000L);
+    }
+
+    /**
+     * @return most room/plan windows XMPPMucSuppressor tracks, the least recently used go first,
+     * -Dxmppmuc.suppress.maxEntries
+     */
+    public static int getSuppressMaxEntries() {
+        return Integer.getInteger("xmppmuc.suppress.maxEntries", 10000);
+    }
+
+    /**
+     * @return seconds between sweeps that close elapsed suppression windows and post their roll-ups,
+     * -Dxmppmuc.suppress.sweepSeconds
+     */
+    public static long getSuppressSweepSeconds() {
+        return Long.getLong("xmppmuc.suppress.sweepSeconds", 5L);
+    }
+
+    /**
+     * @return false to skip connecting and joining rooms when the plugin is enabled, -Dxmppmuc.warmup.enabled
+     */
+    public static boolean isWarmUpEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty("xmppmuc.warmup.enabled"));
+    }
+
+    /**
+     * @return how many of the most used rooms are joined when the plugin is enabled, -Dxmppmuc.warmup.rooms
+     */
+    public static int getWarmUpRooms() {
+        return Integer.getInteger("xmppmuc.warmup.rooms", 50);
+    }
+
+    /**
+     * @return rooms joined at once while warming up, -Dxmppmuc.warmup.parallelism
+     */
+    public static int getWarmUpParallelism() {
+        return Integer.getInteger("xmppmuc.warmup.parallelism", 4);
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                //Fall through to the default
+            }
+        }
+        return defaultValue;
+    }
+}
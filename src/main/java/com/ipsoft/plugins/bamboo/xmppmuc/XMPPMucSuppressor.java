@@ -0,0 +1,267 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import org.apache.log4j.Logger;
+
+import org.jetbrains.annotations.Nullable;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops repeats of a notification already posted to a room, so a flapping plan costs one XMPP round-trip per window
+ * rather than one per build. Only consecutive repeats are dropped: each room and plan key remembers the result state
+ * last posted for it, the first notification of a state opens a window of the recipient's suppression period and is
+ * posted, and further notifications of that same state are counted until the window ends. A notification of another
+ * state is always posted and closes the window early, so the room's last word on a plan is never an outdated state.
+ *
+ * A closed window that suppressed anything is rolled up into one message, "N more FAILED notifications for PLAN-KEY
+ * suppressed", posted by the sweeper thread only, never by Bamboo's notification thread. Windows live in a bounded LRU
+ * cache of -Dxmppmuc.suppress.maxEntries; one evicted early still posts its roll-up. Hits and misses are counted in
+ * XMPPMucMetrics.
+ */
+public class XMPPMucSuppressor implements DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucSuppressor.class);
+
+    private final XMPPMucDeliveryQueue deliveryQueue;
+    private final XMPPMucMetrics metrics;
+    private final Cache<Key, Window> windows;
+    private final Queue<Window> closedWindows = new ConcurrentLinkedQueue<Window>();
+    private final ScheduledExecutorService sweeper;
+
+    public XMPPMucSuppressor(XMPPMucDeliveryQueue deliveryQueue, XMPPMucMetrics metrics)
+    {
+        this.deliveryQueue = deliveryQueue;
+        this.metrics = metrics;
+        this.windows = CacheBuilder.newBuilder()
+                .maximumSize(XMPPMucSettings.getSuppressMaxEntries())
+                .removalListener(new RemovalListener<Key, Window>() {
+                    public void onRemoval(RemovalNotification<Key, Window> notification) {
+                        //Runs on whichever thread touched the cache, the roll-up is left to the sweeper
+                        Window window = notification.getValue();
+                        if (window != null && window.close() > 0) {
+                            closedWindows.add(window);
+                        }
+                    }
+                })
+                .build();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "xmppmuc-suppressor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long sweepSeconds = Math.max(1, XMPPMucSettings.getSuppressSweepSeconds());
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     *
+     * @param message carrying the plan key and state of the result being notified
+     * @param windowMillis how long repeats are suppressed after a notification is posted, 0 or less never suppresses
+     * @return true if the message should be posted, false if it repeats the state last posted within the window
+     */
+    public boolean accept(XMPPMucMessage message, long windowMillis)
+    {
+        if (windowMillis <= 0 || message.getPlanKey() == null) {
+            return true;
+        }
+
+        Key key = new Key(message.getRoom(), message.getPlanKey());
+        ConcurrentMap<Key, Window> open = windows.asMap();
+        long now = System.currentTimeMillis();
+        while (true) {
+            Window window = open.get(key);
+            if (window == null) {
+                if (open.putIfAbsent(key, new Window(key, message.getState(), now + windowMillis)) == null) {
+                    metrics.suppression(false);
+                    return true;
+                }
+            } else if (window.suppress(message, now)) {
+                metrics.suppression(true);
+                return false;
+            } else if (open.replace(key, window, new Window(key, message.getState(), now + windowMillis))) {
+                //Elapsed or of another state, the old window is closed by the removal listener
+                metrics.suppression(false);
+                return true;
+            }
+            //Lost a race with another notification or the sweeper, look again
+        }
+    }
+
+    /**
+     * Closes every elapsed window, then posts the roll-ups of those that suppressed anything.
+     */
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+        try {
+            for (Map.Entry<Key, Window> entry : windows.asMap().entrySet()) {
+                if (entry.getValue().isOver(now)) {
+                    windows.asMap().remove(entry.getKey(), entry.getValue());
+                }
+            }
+            postRollUps();
+        } catch (RuntimeException e) {
+            //Keep sweeping on the next run
+            log.warn("XMPP MUC suppression sweep failed", e);
+        }
+    }
+
+    private void postRollUps()
+    {
+        Window window;
+        while ((window = closedWindows.poll()) != null) {
+            rollUp(window);
+        }
+    }
+
+    private void rollUp(Window window)
+    {
+        //Nothing changes a closed window, so its last message can be read once close() returned
+        int suppressed = window.close();
+        XMPPMucMessage last = window.last;
+        Key key = window.key;
+        String state = window.state != null ? window.state.name() + " " : "";
+        log.debug("XMPP MUC suppressed " + suppressed + " repeats of " + key.planKey + " " + state + "in " + key.room);
+
+        Window current = windows.getIfPresent(key);
+        String body;
+        if (current != null && current.state != window.state) {
+            //The room has been told about a newer state since, don't repeat the old one's text after it
+            body = suppressed + " more " + state + "notifications for " + key.planKey + " were suppressed before it changed"
+                    + (current.state != null ? " to " + current.state.name() : "");
+        } else {
+            body = suppressed + " more " + state + "notifications for " + key.planKey + " suppressed, the latest: " + last.getBody();
+        }
+        deliveryQueue.enqueue(last.withBody(body, null));
+    }
+
+    /**
+     * Posts the roll-ups of every open window, called when the plugin is disabled or uninstalled.
+     */
+    public void destroy()
+    {
+        if (sweeper.isShutdown()) {
+            return;
+        }
+        windows.invalidateAll();
+        //Still from the sweeper, after whatever it is running now
+        sweeper.execute(new Runnable() {
+            public void run() {
+                postRollUps();
+            }
+        });
+        sweeper.shutdown();
+        try {
+            if (!sweeper.awaitTermination(5, TimeUnit.SECONDS)) {
+                sweeper.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            sweeper.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Room and plan key: notifications sharing them are repeats of each other while their state stays the same.
+     */
+    private static final class Key
+    {
+        private final String room;
+        private final String planKey;
+
+        Key(String room, String planKey)
+        {
+            this.room = room;
+            this.planKey = planKey;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return (room != null ? room.equals(that.room) : that.room == null)
+                    && planKey.equals(that.planKey);
+        }
+
+        public int hashCode() {
+            int result = room != null ? room.hashCode() : 0;
+            result = 31 * result + planKey.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * One suppression period of the state last posted for a room and plan, guarded by its own monitor. Once closed it
+     * suppresses nothing more, so a repeat racing with the roll-up is either counted in it or opens the next window.
+     */
+    private static final class Window
+    {
+        private final Key key;
+        @Nullable
+        private final BuildState state;
+        private final long endsAt;
+        private XMPPMucMessage last;
+        private int suppressed;
+        private boolean closed;
+
+        Window(Key key, @Nullable BuildState state, long endsAt)
+        {
+            this.key = key;
+            this.state = state;
+            this.endsAt = endsAt;
+        }
+
+        /**
+         * @return true if the message repeats this window's state while it is open, and is counted in it
+         */
+        synchronized boolean suppress(XMPPMucMessage message, long now)
+        {
+            if (closed || now >= endsAt || message.getState() != state) {
+                return false;
+            }
+            suppressed++;
+            last = message;
+            return true;
+        }
+
+        synchronized boolean isOver(long now)
+        {
+            return now >= endsAt;
+        }
+
+        /**
+         * @return how many notifications the window suppressed
+         */
+        synchronized int close()
+        {
+            closed = true;
+            return suppressed;
+        }
+    }
+}
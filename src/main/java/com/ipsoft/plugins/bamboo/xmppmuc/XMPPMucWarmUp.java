@@ -0,0 +1,219 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.notification.NotificationManager;
+import com.atlassian.bamboo.notification.NotificationRule;
+import com.atlassian.spring.container.ContainerManager;
+
+import org.apache.log4j.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects to the IM servers and joins the most used rooms in the background when the plugin is enabled, so the
+ * first notification after a restart or upgrade does not pay for class loading, TLS, SASL, disco and the MUC join.
+ *
+ * Rooms are read from every saved XMPP MUC notification rule and ranked by how many rules name them; the top
+ * -Dxmppmuc.warmup.rooms are joined, -Dxmppmuc.warmup.parallelism at a time. Rooms, nicknames and servers holding
+ * a Bamboo variable only resolve against a build and are left for the first notification.
+ * -Dxmppmuc.warmup.enabled=false turns the connecting and joining off.
+ *
+ * Either way, the room passwords of the saved rules are handed to XMPPMucOutbox, which does not journal them and needs
+ * them to replay what the previous run left behind.
+ */
+public class XMPPMucWarmUp implements InitializingBean, DisposableBean
+{
+    private static final Logger log = Logger.getLogger(XMPPMucWarmUp.class);
+
+    private static final String VARIABLE_START = "${";
+
+    private final XMPPMucServerDefinitionCache serverDefinitionCache;
+    private final XMPPMucConnectionManager connectionManager;
+    private final XMPPMucMessageSender sender;
+    private final XMPPMucOutbox outbox;
+    private final ExecutorService warmer;
+    private final ExecutorService joiners;
+    private NotificationManager notificationManager;
+
+    public XMPPMucWarmUp(XMPPMucServerDefinitionCache serverDefinitionCache,
+                         XMPPMucConnectionManager connectionManager,
+                         XMPPMucMessageSender sender,
+                         XMPPMucOutbox outbox)
+    {
+        this.serverDefinitionCache = serverDefinitionCache;
+        this.connectionManager = connectionManager;
+        this.sender = sender;
+        this.outbox = outbox;
+        this.warmer = Executors.newSingleThreadExecutor(daemon("xmppmuc-warmup"));
+        this.joiners = Executors.newFixedThreadPool(Math.max(1, XMPPMucSettings.getWarmUpParallelism()), daemon("xmppmuc-warmup-join"));
+    }
+
+    public void afterPropertiesSet()
+    {
+        warmer.execute(new Runnable() {
+            public void run() {
+                try {
+                    warmUp();
+                } catch (RuntimeException e) {
+                    //Only costs the first notification its latency
+                    log.warn("XMPP MUC warm-up failed", e);
+                }
+            }
+        });
+    }
+
+    private void warmUp()
+    {
+        long start = System.currentTimeMillis();
+        List<XMPPMucMessage> rooms = mostUsedRooms(XMPPMucSettings.getWarmUpRooms());
+        if (rooms.isEmpty() || !XMPPMucSettings.isWarmUpEnabled()) {
+            return;
+        }
+
+        //Connect every server up front, the joins then share its connection
+        for (XMPPMucConferenceInstantMessagingServerDefinition server : serverDefinitionCache.getServers()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                connectionManager.getConnection(server);
+            } catch (Exception e) {
+                log.info("XMPP MUC warm-up unable to connect to " + server.getHost() + ", the first notification will retry");
+                log.trace(e.getStackTrace());
+            }
+        }
+
+        final AtomicInteger joined = new AtomicInteger();
+        for (final XMPPMucMessage room : rooms) {
+            joiners.execute(new Runnable() {
+                public void run() {
+                    if (sender.join(room)) {
+                        joined.incrementAndGet();
+                    }
+                }
+            });
+        }
+        joiners.shutdown();
+        try {
+            joiners.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        log.info("XMPP MUC warm-up joined " + joined.get() + " of " + rooms.size() + " rooms in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     *
+     * @param limit
+     * @return the rooms named by the most saved notification rules, most used first, with the settings of the
+     * first rule naming them
+     * Also hands every room password that needs no build to resolve to the outbox.
+     */
+    private List<XMPPMucMessage> mostUsedRooms(int limit)
+    {
+        final Map<String, Integer> uses = new LinkedHashMap<String, Integer>();
+        Map<String, XMPPMucMessage> settings = new LinkedHashMap<String, XMPPMucMessage>();
+        for (NotificationRule rule : getNotificationManager().getAllNotificationRules()) {
+            String recipientType = rule.getRecipientType();
+            if (recipientType == null || !recipientType.endsWith(":" + XMPPMucNotificationRecipient.MODULE_KEY)) {
+                continue;
+            }
+
+            XMPPMucRecipientConfig config;
+            try {
+                config = XMPPMucRecipientConfigCodec.decode(rule.getRecipient());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            List<XMPPMucRoom> ruleRooms = XMPPMucRoom.parseList(config.get(XMPPMucNotificationRecipient.MUC_ROOM),
+                    config.get(XMPPMucNotificationRecipient.MUC_ROOMPW), config.get(XMPPMucNotificationRecipient.MUC_ROOM_PASSWORDS));
+            for (XMPPMucRoom room : ruleRooms) {
+                if (!hasVariable(room.getJid()) && !hasVariable(room.getPassword())) {
+                    outbox.rememberPassword(room.getJid(), room.getPassword());
+                }
+            }
+            String nickname = config.get(XMPPMucNotificationRecipient.MUC_NICKNAME);
+            String server = config.get(XMPPMucNotificationRecipient.MUC_SERVER);
+            if (server != null && server.trim().isEmpty()) {
+                server = null;
+            }
+            if (hasVariable(nickname) || hasVariable(server)) {
+                continue;
+            }
+            for (XMPPMucRoom room : ruleRooms) {
+                if (hasVariable(room.getJid()) || hasVariable(room.getPassword()) || !room.isValid()) {
+                    continue;
+                }
+                Integer count = uses.get(room.getJid());
+                uses.put(room.getJid(), count != null ? count + 1 : 1);
+                if (!settings.containsKey(room.getJid())) {
+                    settings.put(room.getJid(), new XMPPMucMessage(room.getJid(), room.getPassword(), nickname, server != null ? server.trim() : null, ""));
+                }
+            }
+        }
+
+        List<String> ranked = new ArrayList<String>(uses.keySet());
+        Collections.sort(ranked, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return uses.get(b).compareTo(uses.get(a));
+            }
+        });
+        List<XMPPMucMessage> rooms = new ArrayList<XMPPMucMessage>();
+        for (String jid : ranked.subList(0, Math.min(Math.max(0, limit), ranked.size()))) {
+            rooms.add(settings.get(jid));
+        }
+        return rooms;
+    }
+
+    private static boolean hasVariable(String value)
+    {
+        return value != null && value.contains(VARIABLE_START);
+    }
+
+    private static ThreadFactory daemon(final String name)
+    {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private NotificationManager getNotificationManager() {
+        if (this.notificationManager == null) {
+            this.notificationManager = (NotificationManager) ContainerManager.getComponent("notificationManager");
+        }
+        return this.notificationManager;
+    }
+
+    public void setNotificationManager(NotificationManager notificationManager) {
+        this.notificationManager = notificationManager;
+    }
+
+    /**
+     * Stops warming up, called when the plugin is disabled or uninstalled.
+     */
+    public void destroy()
+    {
+        warmer.shutdownNow();
+        joiners.shutdownNow();
+    }
+}
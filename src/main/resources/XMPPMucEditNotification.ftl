@@ -1,3 +1,12 @@
-[@ww.textfield labelKey="xmppmuc.room" name="room" value="${room!}" required='true'/]
+[@ww.textarea labelKey="xmppmuc.room" name="room" value="${room!}" rows="3" required='true'/]
 [@ww.textfield labelKey="xmppmuc.roompw" name="roompw" value="${roompw!}" required='false'/]
-[@ww.textfield labelKey="xmppmuc.nickname" name="nickname" value="${nickname!}" required='false'/]
\ No newline at end of file
+[@ww.textarea labelKey="xmppmuc.roomPasswords" name="roomPasswords" value="${roomPasswords!}" rows="2" required='false'/]
+[@ww.textfield labelKey="xmppmuc.nickname" name="nickname" value="${nickname!}" required='false'/]
+[@ww.textfield labelKey="xmppmuc.server" name="server" value="${server!}" required='false'/]
+[@ww.textarea labelKey="xmppmuc.template" name="template" value="${template!}" rows="3" required='false'/]
+[@ww.checkbox labelKey="xmppmuc.xhtml" name="xhtml" value="${xhtml!'false'}" fieldValue="true" required='false'/]
+[@ww.textfield labelKey="xmppmuc.coalesceWindow" name="coalesceWindow" value="${coalesceWindow!}" required='false'/]
+[@ww.textfield labelKey="xmppmuc.coalesceMaxBatch" name="coalesceMaxBatch" value="${coalesceMaxBatch!}" required='false'/]
+[@ww.textfield labelKey="xmppmuc.coalesceMaxDelay" name="coalesceMaxDelay" value="${coalesceMaxDelay!}" required='false'/]
+[@ww.textfield labelKey="xmppmuc.suppressWindow" name="suppressWindow" value="${suppressWindow!}" required='false'/]
+[@ww.select labelKey="xmppmuc.priority" name="priority" value="${priority!}" list=priorities listKey="key" listValue="value" required='false'/]
\ No newline at end of file
@@ -0,0 +1,158 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How a delivery worker keeps its stripe moving while the rate limiter holds one of its rooms back.
+ */
+public class XMPPMucDeliveryQueueTest
+{
+    private static final String NOISY = "noisy@conference.example.com";
+    private static final String QUIET = "quiet@conference.example.com";
+
+    private File directory;
+    private XMPPMucMetrics metrics;
+    private ThrottlingSender sender;
+    private XMPPMucOutbox outbox;
+    private XMPPMucDeliveryQueue queue;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile("xmppmuc-queue", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        System.setProperty("xmppmuc.outbox.dir", directory.getPath());
+        System.setProperty("xmppmuc.outbox.replaySeconds", "3600");
+        //One stripe, so both rooms share a worker
+        System.setProperty("xmppmuc.queue.workers", "1");
+        metrics = new XMPPMucMetrics();
+        sender = new ThrottlingSender();
+        outbox = new XMPPMucOutbox(sender, metrics);
+        queue = new XMPPMucDeliveryQueue(sender, outbox, metrics);
+    }
+
+    @After
+    public void tearDown()
+    {
+        queue.destroy();
+        outbox.destroy();
+        metrics.destroy();
+        System.clearProperty("xmppmuc.outbox.dir");
+        System.clearProperty("xmppmuc.outbox.replaySeconds");
+        System.clearProperty("xmppmuc.queue.workers");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void throttledRoomDoesNotHoldUpItsStripe() throws InterruptedException
+    {
+        sender.throttle(NOISY, TimeUnit.SECONDS.toNanos(30));
+        queue.enqueue(message(NOISY, "n1", XMPPMucPriority.LOW));
+        queue.enqueue(message(NOISY, "n2", XMPPMucPriority.LOW));
+        queue.enqueue(message(QUIET, "q1", XMPPMucPriority.URGENT));
+
+        sender.await(1);
+        assertEquals(Arrays.asList("q1"), sender.sent());
+        assertEquals(2, queue.getQueueDepth());
+    }
+
+    @Test
+    public void parkedRoomIsSentInOrderOnceDue() throws InterruptedException
+    {
+        sender.throttle(NOISY, TimeUnit.MILLISECONDS.toNanos(200));
+        queue.enqueue(message(NOISY, "n1", XMPPMucPriority.LOW));
+        queue.enqueue(message(NOISY, "n2", XMPPMucPriority.LOW));
+        queue.enqueue(message(QUIET, "q1", XMPPMucPriority.LOW));
+        //Parked behind n1 and n2, but still ahead of them as the lanes would have it
+        queue.enqueue(message(NOISY, "n3", XMPPMucPriority.URGENT));
+
+        sender.await(4);
+        assertEquals(Arrays.asList("q1", "n3", "n1", "n2"), sender.sent());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void parkedMessagesAreKeptOnShutdown() throws InterruptedException
+    {
+        sender.throttle(NOISY, TimeUnit.SECONDS.toNanos(30));
+        queue.enqueue(message(NOISY, "n1", XMPPMucPriority.NORMAL));
+        queue.enqueue(message(QUIET, "q1", XMPPMucPriority.NORMAL));
+        sender.await(1);
+
+        queue.destroy();
+
+        assertEquals(1, outbox.getPendingCount());
+        assertTrue(outbox.hasPending(NOISY));
+    }
+
+    private static XMPPMucMessage message(String room, String body, XMPPMucPriority priority)
+    {
+        return new XMPPMucMessage(room, null, "Bamboo", null, body, null, priority, null, null);
+    }
+
+    /**
+     * Records what it sends, holding back rooms as the rate limiter would until their throttle has passed.
+     */
+    private static final class ThrottlingSender extends XMPPMucMessageSender
+    {
+        private final Map<String, Long> throttledUntil = new HashMap<String, Long>();
+        private final List<String> sent = new ArrayList<String>();
+
+        ThrottlingSender()
+        {
+            super(null, null, null, null, null, null);
+        }
+
+        synchronized void throttle(String room, long nanos)
+        {
+            throttledUntil.put(room, System.nanoTime() + nanos);
+        }
+
+        public synchronized long trySend(XMPPMucMessage message)
+        {
+            Long until = throttledUntil.get(message.getRoom());
+            long waitNanos = until != null ? until - System.nanoTime() : 0;
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            sent.add(message.getBody());
+            notifyAll();
+            return DONE;
+        }
+
+        synchronized List<String> sent()
+        {
+            return new ArrayList<String>(sent);
+        }
+
+        synchronized void await(int count) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (sent.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            //Anything else the worker was going to do by now
+            wait(100);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+import com.atlassian.bamboo.notification.Notification;
+import com.atlassian.bamboo.plan.cache.ImmutablePlan;
+import com.atlassian.bamboo.resultsummary.ResultsSummary;
+import com.atlassian.bamboo.variable.CustomVariableContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * What a queued notification keeps alive: only the compact fields of XMPPMucMessage, with the room settings and plan
+ * keys of a backlog shared between its messages. The heap a backlog actually takes depends on the JVM and is measured
+ * by XMPPMucBacklogFootprint in the benchmark profile.
+ */
+public class XMPPMucFootprintTest
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NOTIFICATIONS = 200;
+    private static final int ROOMS = 4;
+    private static final int PLANS = 5;
+
+    private XMPPMucMetrics metrics;
+    private CapturingQueue queue;
+    private XMPPMucCoalescer coalescer;
+    private XMPPMucSuppressor suppressor;
+
+    @Before
+    public void setUp()
+    {
+        metrics = new XMPPMucMetrics();
+        queue = new CapturingQueue(metrics);
+        coalescer = new XMPPMucCoalescer(queue);
+        suppressor = new XMPPMucSuppressor(queue, metrics);
+    }
+
+    @After
+    public void tearDown()
+    {
+        suppressor.destroy();
+        coalescer.destroy();
+        queue.destroy();
+        metrics.destroy();
+    }
+
+    @Test
+    public void messageHoldsOnlyCompactFields()
+    {
+        Set<Class<?>> compact = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+                String.class, byte[].class, XMPPMucPriority.class, BuildState.class));
+        for (Field field : XMPPMucMessage.class.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                assertTrue(field.getName() + " is a " + field.getType().getName(), compact.contains(field.getType()));
+            }
+        }
+    }
+
+    @Test
+    public void roomSettingsAreShared()
+    {
+        XMPPMucMessage first = new XMPPMucMessage(copy("team@conference.example.com"), copy("pw"), copy("Bamboo"), copy("alpha"),
+                "one", null, XMPPMucPriority.NORMAL, copy("BAM-PLAN"), BuildState.SUCCESS);
+        XMPPMucMessage second = new XMPPMucMessage(copy("team@conference.example.com"), copy("pw"), copy("Bamboo"), copy("alpha"),
+                "two", null, XMPPMucPriority.NORMAL, copy("BAM-PLAN"), BuildState.FAILED);
+
+        assertSame(first.getRoom(), second.getRoom());
+        assertSame(first.getRoompw(), second.getRoompw());
+        assertSame(first.getNickname(), second.getNickname());
+        assertSame(first.getServer(), second.getServer());
+        assertSame(first.getPlanKey(), second.getPlanKey());
+    }
+
+    @Test
+    public void bodiesAreKeptAsUtf8()
+    {
+        String body = "Build BAM-PLAN #7 échoué";
+        XMPPMucMessage message = new XMPPMucMessage("team@conference.example.com", null, "Bamboo", body);
+
+        assertEquals(body.getBytes(UTF_8).length, message.getBodyBytes().length);
+        assertEquals(body, message.getBody());
+        assertNull(message.getXhtmlBodyBytes());
+    }
+
+    @Test
+    public void queuedBacklogSharesRoomSettingsAndPlanKeys()
+    {
+        CustomVariableContext variables = mock(CustomVariableContext.class, withSettings().stubOnly());
+        ImmutablePlan[] plans = new ImmutablePlan[PLANS];
+        for (int i = 0; i < PLANS; i++) {
+            plans[i] = plan("BAM-PLAN" + i);
+        }
+        ResultsSummary failed = resultsSummary(BuildState.FAILED);
+        ResultsSummary successful = resultsSummary(BuildState.SUCCESS);
+
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            //Fresh strings every time, as Bamboo hands each transport its own copy of the recipient's settings
+            XMPPMucNotificationTransport transport = new XMPPMucNotificationTransport(
+                    copy("room" + (i % ROOMS) + "@conference.example.com"), null, null, copy("Bamboo"), null, null, false,
+                    0, 1, 0, 0, null, plans[i % PLANS], i % 3 == 0 ? failed : successful, null, variables, coalescer, suppressor);
+            transport.sendNotification(notification("BAM-PLAN" + (i % PLANS) + " #" + i));
+        }
+
+        List<XMPPMucMessage> queued = queue.messages;
+        assertEquals(NOTIFICATIONS, queued.size());
+        Map<String, XMPPMucMessage> firstByRoom = new HashMap<String, XMPPMucMessage>();
+        Map<String, String> planKeys = new HashMap<String, String>();
+        for (XMPPMucMessage message : queued) {
+            XMPPMucMessage first = firstByRoom.get(message.getRoom());
+            if (first == null) {
+                firstByRoom.put(message.getRoom(), message);
+            } else {
+                assertSame(first.getRoom(), message.getRoom());
+                assertSame(first.getNickname(), message.getNickname());
+            }
+            String planKey = planKeys.get(message.getPlanKey());
+            if (planKey == null) {
+                planKeys.put(message.getPlanKey(), message.getPlanKey());
+            } else {
+                assertSame(planKey, message.getPlanKey());
+            }
+        }
+        assertEquals(ROOMS, firstByRoom.size());
+        assertEquals(PLANS, planKeys.size());
+    }
+
+    private static String copy(String value)
+    {
+        return new String(value.toCharArray());
+    }
+
+    private static ImmutablePlan plan(String key)
+    {
+        ImmutablePlan plan = mock(ImmutablePlan.class, withSettings().stubOnly());
+        when(plan.getKey()).thenReturn(copy(key));
+        when(plan.getName()).thenReturn("Plan " + key);
+        return plan;
+    }
+
+    private static ResultsSummary resultsSummary(BuildState state)
+    {
+        ResultsSummary resultsSummary = mock(ResultsSummary.class, withSettings().stubOnly());
+        when(resultsSummary.getBuildState()).thenReturn(state);
+        return resultsSummary;
+    }
+
+    private static Notification notification(String imContent)
+    {
+        Notification notification = mock(Notification.class, withSettings().stubOnly());
+        when(notification.getIMContent()).thenReturn(imContent);
+        return notification;
+    }
+
+    /**
+     * Keeps what is enqueued instead of delivering it, as a queue whose server does not answer would.
+     */
+    private static final class CapturingQueue extends XMPPMucDeliveryQueue
+    {
+        private final List<XMPPMucMessage> messages = new ArrayList<XMPPMucMessage>();
+
+        CapturingQueue(XMPPMucMetrics metrics)
+        {
+            super(null, null, metrics);
+        }
+
+        public synchronized boolean enqueue(XMPPMucMessage message)
+        {
+            messages.add(message);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Percentiles of XMPPMucLatencyHistogram are an upper bound within 12.5% of the exact value.
+ */
+public class XMPPMucLatencyHistogramTest
+{
+    @Test
+    public void emptyHistogramReportsZero()
+    {
+        XMPPMucLatencyHistogram histogram = new XMPPMucLatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void smallValuesAreExact()
+    {
+        XMPPMucLatencyHistogram histogram = new XMPPMucLatencyHistogram();
+        for (int i = 0; i < 8; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(8, histogram.getCount());
+        assertEquals(3, histogram.getValueAtPercentile(50));
+        assertEquals(7, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentilesOfUniformValues()
+    {
+        XMPPMucLatencyHistogram histogram = new XMPPMucLatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+
+        assertWithinBucket(5000, histogram.getValueAtPercentile(50));
+        assertWithinBucket(9900, histogram.getValueAtPercentile(99));
+        assertWithinBucket(9990, histogram.getValueAtPercentile(99.9));
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+        assertEquals(10000, histogram.getMax());
+    }
+
+    @Test
+    public void percentileIsCappedAtMax()
+    {
+        XMPPMucLatencyHistogram histogram = new XMPPMucLatencyHistogram();
+        histogram.record(1000);
+
+        assertEquals(1000, histogram.getValueAtPercentile(50));
+        assertEquals(1000, histogram.getValueAtPercentile(99.9));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero()
+    {
+        XMPPMucLatencyHistogram histogram = new XMPPMucLatencyHistogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void hugeValuesLandInLastBucket()
+    {
+        XMPPMucLatencyHistogram histogram = new XMPPMucLatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertTrue(histogram.getValueAtPercentile(50) > 0);
+    }
+
+    @Test
+    public void everyBucketBoundsItsValues()
+    {
+        //Up to about 76 hours, above that everything shares the last bucket
+        for (long value = 0; value < 1L << 38; value = value * 3 / 2 + 1) {
+            long upper = XMPPMucLatencyHistogram.upperBoundOf(XMPPMucLatencyHistogram.indexOf(value));
+            assertWithinBucket(value, upper);
+        }
+    }
+
+    private static void assertWithinBucket(long exact, long reported)
+    {
+        assertTrue(reported + " below " + exact, reported >= exact);
+        assertTrue(reported + " more than 12.5% above " + exact, reported <= exact + exact / 8);
+    }
+}
@@ -0,0 +1,95 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.variable.CustomVariableContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Rendering of XMPPMucMessageTemplate, and the escaping that keeps XHTML-IM templates well-formed.
+ */
+public class XMPPMucMessageTemplateTest
+{
+    private CustomVariableContext variables;
+
+    @Before
+    public void setUp()
+    {
+        variables = mock(CustomVariableContext.class);
+        when(variables.substituteString("${bamboo.branch}")).thenReturn("<feature&fix>");
+        when(variables.substituteString("${bamboo.secret}")).thenReturn("hunter2");
+    }
+
+    @Test
+    public void plainTextIsNotEscaped()
+    {
+        XMPPMucMessageTemplate template = XMPPMucMessageTemplate.compile("[${bamboo.branch}] ${content}");
+
+        assertEquals("[<feature&fix>] <b>", template.render("<b>", null, null, null, false, variables));
+    }
+
+    @Test
+    public void plainValuesAreNotSubstituted()
+    {
+        XMPPMucMessageTemplate template = XMPPMucMessageTemplate.compile("[${bamboo.branch}] ${content}");
+
+        //A commit message quoting a variable must not have Bamboo expand it into the room
+        assertEquals("[<feature&fix>] Log ${bamboo.secret}",
+                template.render("Log ${bamboo.secret}", null, null, null, false, variables));
+    }
+
+    @Test
+    public void xhtmlEscapesOwnVariables()
+    {
+        XMPPMucMessageTemplate template = XMPPMucMessageTemplate.compile("<strong>${content}</strong>");
+
+        String rendered = template.render("a < b & \"c\"", null, null, null, true, variables);
+
+        assertEquals("<strong>a &lt; b &amp; &quot;c&quot;</strong>", rendered);
+        assertTrue(XMPPMucMessageTemplate.isWellFormed(rendered));
+    }
+
+    @Test
+    public void xhtmlEscapesBambooVariables()
+    {
+        XMPPMucMessageTemplate template = XMPPMucMessageTemplate.compile("<em>${bamboo.branch}</em> ${content}");
+
+        String rendered = template.render("done", null, null, null, true, variables);
+
+        assertEquals("<em>&lt;feature&amp;fix&gt;</em> done", rendered);
+        assertTrue(XMPPMucMessageTemplate.isWellFormed(rendered));
+        assertEquals("<feature&fix> done", XMPPMucMessageTemplate.toPlainText(rendered));
+    }
+
+    @Test
+    public void xhtmlValuesAreNotSubstitutedAgain()
+    {
+        XMPPMucMessageTemplate template = XMPPMucMessageTemplate.compile("<em>${bamboo.branch}</em> ${content}");
+
+        assertEquals("<em>&lt;feature&amp;fix&gt;</em> ${bamboo.branch}",
+                template.render("${bamboo.branch}", null, null, null, true, variables));
+    }
+
+    @Test
+    public void wellFormedTemplates()
+    {
+        assertTrue(XMPPMucMessageTemplate.compile("<strong>${plan}</strong> ${state}<br/>${bamboo.branch}").isWellFormedXhtml());
+        assertTrue(XMPPMucMessageTemplate.compile("plain ${content}").isWellFormedXhtml());
+        assertTrue(XMPPMucMessageTemplate.compile("a &amp; b").isWellFormedXhtml());
+    }
+
+    @Test
+    public void malformedTemplates()
+    {
+        assertFalse(XMPPMucMessageTemplate.compile("<strong>${plan}").isWellFormedXhtml());
+        assertFalse(XMPPMucMessageTemplate.compile("<em>${plan}</strong>").isWellFormedXhtml());
+        assertFalse(XMPPMucMessageTemplate.compile("a & b").isWellFormedXhtml());
+        assertFalse(XMPPMucMessageTemplate.isWellFormed("</body><body>"));
+    }
+}
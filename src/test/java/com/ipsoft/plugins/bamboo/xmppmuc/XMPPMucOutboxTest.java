@@ -0,0 +1,380 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Append, replay and crash recovery of XMPPMucOutbox, in a scratch directory and with a sender that only records.
+ */
+public class XMPPMucOutboxTest
+{
+    private static final String ROOM_A = "a@conference.example.com";
+    private static final String ROOM_B = "b@conference.example.com";
+
+    private File directory;
+    private XMPPMucMetrics metrics;
+    private RecordingSender sender;
+    private final List<XMPPMucOutbox> outboxes = new ArrayList<XMPPMucOutbox>();
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile("xmppmuc-outbox", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        System.setProperty("xmppmuc.outbox.dir", directory.getPath());
+        //Replayed by the tests only
+        System.setProperty("xmppmuc.outbox.replaySeconds", "3600");
+        metrics = new XMPPMucMetrics();
+        sender = new RecordingSender();
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (XMPPMucOutbox outbox : outboxes) {
+            outbox.destroy();
+        }
+        metrics.destroy();
+        System.clearProperty("xmppmuc.outbox.dir");
+        System.clearProperty("xmppmuc.outbox.replaySeconds");
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void replaysInOrderAndCompacts()
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(message(ROOM_A, "one"));
+        outbox.append(message(ROOM_B, "two"));
+        outbox.append(message(ROOM_A, "three"));
+
+        assertEquals(3, outbox.getPendingCount());
+        assertTrue(outbox.hasPending(ROOM_A));
+        assertTrue(outbox.hasPending(ROOM_B));
+
+        outbox.replay();
+
+        assertEquals(Arrays.asList("one", "two", "three"), sender.bodies);
+        assertEquals(0, outbox.getPendingCount());
+        assertFalse(outbox.hasPending(ROOM_A));
+        assertEquals(0, segments().length);
+    }
+
+    @Test
+    public void pendingMessagesSurviveRestart()
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(new XMPPMucMessage(ROOM_A, null, "Bamboo", "alpha", "one", "<strong>one</strong>",
+                XMPPMucPriority.URGENT, "BAM-PLAN", BuildState.FAILED));
+        outbox.append(message(ROOM_B, "two"));
+        close(outbox);
+
+        XMPPMucOutbox recovered = open();
+        assertEquals(2, recovered.getPendingCount());
+        assertTrue(recovered.hasPending(ROOM_A));
+
+        recovered.replay();
+
+        assertEquals(Arrays.asList("one", "two"), sender.bodies);
+        XMPPMucMessage first = sender.messages.get(0);
+        assertEquals(ROOM_A, first.getRoom());
+        assertNull(first.getRoompw());
+        assertEquals("Bamboo", first.getNickname());
+        assertEquals("alpha", first.getServer());
+        assertEquals("<strong>one</strong>", first.getXhtmlBody());
+        assertEquals(XMPPMucPriority.URGENT, first.getPriority());
+        assertEquals("BAM-PLAN", first.getPlanKey());
+        assertEquals(BuildState.FAILED, first.getState());
+        assertEquals(XMPPMucPriority.NORMAL, sender.messages.get(1).getPriority());
+        assertNull(sender.messages.get(1).getState());
+        assertEquals(0, recovered.getPendingCount());
+    }
+
+    @Test
+    public void passwordsAreNotJournalled() throws IOException
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(new XMPPMucMessage(ROOM_A, "s3cret-pw", "Bamboo", "one"));
+        close(outbox);
+
+        byte[] journal = Files.readAllBytes(segments()[0].toPath());
+        assertFalse(new String(journal, Charset.forName("ISO-8859-1")).contains("s3cret-pw"));
+    }
+
+    @Test
+    public void roomWaitsForItsPasswordAfterRestart()
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(new XMPPMucMessage(ROOM_A, "pw", "Bamboo", "a1"));
+        outbox.append(message(ROOM_B, "b1"));
+        close(outbox);
+
+        XMPPMucOutbox recovered = open();
+        recovered.replay();
+        //Joining without it would have the room refuse and the message dropped
+        assertEquals(Arrays.asList("b1"), sender.bodies);
+        assertTrue(recovered.hasPending(ROOM_A));
+
+        recovered.rememberPassword(ROOM_A, "pw");
+        recovered.replay();
+        assertEquals(Arrays.asList("b1", "a1"), sender.bodies);
+        assertEquals("pw", sender.messages.get(1).getRoompw());
+    }
+
+    @Test
+    public void passwordOfAnAppendedMessageIsKeptForReplay()
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(new XMPPMucMessage(ROOM_A, "pw", "Bamboo", "a1"));
+
+        outbox.replay();
+
+        assertEquals("pw", sender.messages.get(0).getRoompw());
+    }
+
+    @Test
+    public void failedRoomKeepsItsOrder()
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(message(ROOM_A, "a1"));
+        outbox.append(message(ROOM_B, "b1"));
+        outbox.append(message(ROOM_A, "a2"));
+
+        sender.unreachable.add(ROOM_A);
+        outbox.replay();
+        assertEquals(Arrays.asList("b1"), sender.bodies);
+        assertEquals(2, outbox.getPendingCount());
+        assertTrue(outbox.hasPending(ROOM_A));
+        assertFalse(outbox.hasPending(ROOM_B));
+
+        sender.unreachable.clear();
+        outbox.replay();
+        assertEquals(Arrays.asList("b1", "a1", "a2"), sender.bodies);
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(message(ROOM_A, "one"));
+        outbox.append(message(ROOM_A, "two"));
+        close(outbox);
+
+        File segment = segments()[0];
+        long valid = segment.length();
+        //A crash in the middle of an append: the header promises more payload than was written
+        FileOutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(ByteBuffer.allocate(14).putInt(100).putInt(0).put((byte) 1).array());
+        } finally {
+            out.close();
+        }
+
+        XMPPMucOutbox recovered = open();
+        assertEquals(2, recovered.getPendingCount());
+        assertEquals(valid, segment.length());
+
+        recovered.append(message(ROOM_A, "three"));
+        recovered.replay();
+        assertEquals(Arrays.asList("one", "two", "three"), sender.bodies);
+    }
+
+    @Test
+    public void damagedPayloadOnlyLosesItsRecord() throws IOException
+    {
+        long[] offsets = writeThree();
+        //Flip a byte inside the second record's payload
+        corrupt(offsets[1] + 20, (byte) 0x5A);
+
+        assertRecoversAroundSecond(offsets[3]);
+    }
+
+    @Test
+    public void damagedHeaderOnlyLosesItsRecord() throws IOException
+    {
+        long[] offsets = writeThree();
+        //A length running past the end of the segment
+        corrupt(offsets[1], (byte) 0x7F);
+
+        assertRecoversAroundSecond(offsets[3]);
+    }
+
+    @Test
+    public void acknowledgedRecordsAreNotReplayedAfterRestart()
+    {
+        XMPPMucOutbox outbox = open();
+        outbox.append(message(ROOM_A, "a1"));
+        outbox.append(message(ROOM_B, "b1"));
+        sender.unreachable.add(ROOM_A);
+        outbox.replay();
+        close(outbox);
+
+        sender.unreachable.clear();
+        XMPPMucOutbox recovered = open();
+        assertEquals(1, recovered.getPendingCount());
+        recovered.replay();
+        assertEquals(Arrays.asList("b1", "a1"), sender.bodies);
+    }
+
+    @Test
+    public void readsPlainRecordsOfTheFirstFormat() throws IOException
+    {
+        byte[][] fields = { utf8(ROOM_A), utf8("pw"), utf8("Bamboo"), null, utf8("plain") };
+        ByteBuffer payload = ByteBuffer.allocate(64);
+        payload.put((byte) 1);
+        for (byte[] field : fields) {
+            if (field == null) {
+                payload.putInt(-1);
+            } else {
+                payload.putInt(field.length).put(field);
+            }
+        }
+
+        XMPPMucMessage message = XMPPMucOutbox.decode(Arrays.copyOf(payload.array(), payload.position()));
+
+        assertEquals(ROOM_A, message.getRoom());
+        assertEquals("pw", message.getRoompw());
+        assertNull(message.getServer());
+        assertEquals("plain", message.getBody());
+        assertNull(message.getXhtmlBody());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownRecordVersion() throws IOException
+    {
+        XMPPMucOutbox.decode(new byte[] { 9, 0, 0, 0, 0 });
+    }
+
+    /**
+     * @return where each of the three records starts, then the segment's length
+     */
+    private long[] writeThree()
+    {
+        long[] offsets = new long[4];
+        XMPPMucOutbox outbox = open();
+        String[] bodies = { "one", "two", "three" };
+        for (int i = 0; i < bodies.length; i++) {
+            File[] segments = segments();
+            offsets[i] = segments.length == 0 ? 0 : segments[0].length();
+            outbox.append(message(ROOM_A, bodies[i]));
+        }
+        close(outbox);
+        offsets[3] = segments()[0].length();
+        return offsets;
+    }
+
+    private void assertRecoversAroundSecond(long length)
+    {
+        XMPPMucOutbox recovered = open();
+        assertEquals(2, recovered.getPendingCount());
+        assertEquals(length, segments()[0].length());
+        close(recovered);
+
+        //Stepped over the same way after another restart
+        recovered = open();
+        assertEquals(2, recovered.getPendingCount());
+        recovered.replay();
+        assertEquals(Arrays.asList("one", "three"), sender.bodies);
+    }
+
+    private void corrupt(long position, byte value) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(segments()[0], "rw");
+        try {
+            file.seek(position);
+            file.write(value);
+        } finally {
+            file.close();
+        }
+    }
+
+    private XMPPMucOutbox open()
+    {
+        XMPPMucOutbox outbox = new XMPPMucOutbox(sender, metrics);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    private void close(XMPPMucOutbox outbox)
+    {
+        outbox.destroy();
+        outboxes.remove(outbox);
+    }
+
+    private File[] segments()
+    {
+        File[] files = directory.listFiles();
+        List<File> segments = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".seg")) {
+                    segments.add(file);
+                }
+            }
+        }
+        return segments.toArray(new File[segments.size()]);
+    }
+
+    private static XMPPMucMessage message(String room, String body)
+    {
+        return new XMPPMucMessage(room, null, "Bamboo", body);
+    }
+
+    private static byte[] utf8(String value)
+    {
+        return value.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Records what it is asked to send, failing for rooms marked unreachable.
+     */
+    private static final class RecordingSender extends XMPPMucMessageSender
+    {
+        private final List<XMPPMucMessage> messages = new ArrayList<XMPPMucMessage>();
+        private final List<String> bodies = new ArrayList<String>();
+        private final Set<String> unreachable = new HashSet<String>();
+
+        RecordingSender()
+        {
+            super(null, null, null, null, null, null);
+        }
+
+        public boolean send(XMPPMucMessage message)
+        {
+            if (unreachable.contains(message.getRoom())) {
+                return false;
+            }
+            messages.add(message);
+            bodies.add(message.getBody());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Lanes XMPPMucPriority gives results. The classifier remembers states across calls, so every test uses its own plans.
+ */
+public class XMPPMucPriorityTest
+{
+    @Test
+    public void failureIsUrgentAndRecoveryNormal()
+    {
+        assertEquals(XMPPMucPriority.LOW, XMPPMucPriority.classify("A-PLAN", "A-PLAN-1", BuildState.SUCCESS));
+        assertEquals(XMPPMucPriority.URGENT, XMPPMucPriority.classify("A-PLAN", "A-PLAN-2", BuildState.FAILED));
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("A-PLAN", "A-PLAN-3", BuildState.SUCCESS));
+        assertEquals(XMPPMucPriority.LOW, XMPPMucPriority.classify("A-PLAN", "A-PLAN-4", BuildState.SUCCESS));
+    }
+
+    @Test
+    public void everyRecipientOfAResultGetsTheSameLane()
+    {
+        XMPPMucPriority.classify("B-PLAN", "B-PLAN-1", BuildState.FAILED);
+
+        //The recovery, looked up once per recipient, stays a recovery
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("B-PLAN", "B-PLAN-2", BuildState.SUCCESS));
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("B-PLAN", "B-PLAN-2", BuildState.SUCCESS));
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("B-PLAN", "B-PLAN-2", BuildState.SUCCESS));
+    }
+
+    @Test
+    public void laterResultsDoNotChangeAnEarlierOne()
+    {
+        XMPPMucPriority.classify("C-PLAN", "C-PLAN-1", BuildState.FAILED);
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("C-PLAN", "C-PLAN-2", BuildState.SUCCESS));
+        XMPPMucPriority.classify("C-PLAN", "C-PLAN-3", BuildState.SUCCESS);
+
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("C-PLAN", "C-PLAN-2", BuildState.SUCCESS));
+    }
+
+    @Test
+    public void rerunToSuccessIsARecovery()
+    {
+        assertEquals(XMPPMucPriority.URGENT, XMPPMucPriority.classify("D-PLAN", "D-PLAN-1", BuildState.FAILED));
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("D-PLAN", "D-PLAN-1", BuildState.SUCCESS));
+    }
+
+    @Test
+    public void notificationsNotAboutAResultAreNormal()
+    {
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify("E-PLAN", null, null));
+        assertEquals(XMPPMucPriority.NORMAL, XMPPMucPriority.classify(null, null, BuildState.UNKNOWN));
+    }
+
+    @Test
+    public void parsesRecipientSetting()
+    {
+        assertEquals(XMPPMucPriority.URGENT, XMPPMucPriority.parse(" urgent "));
+        assertNull(XMPPMucPriority.parse(""));
+        assertNull(XMPPMucPriority.parse("ASAP"));
+    }
+}
@@ -0,0 +1,126 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.instantmessagingserver.InstantMessagingServerDefinitionImpl;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GCRA timing of XMPPMucRateLimiter's buckets, driven by a fake clock, and how the limiter combines them.
+ */
+public class XMPPMucRateLimiterTest
+{
+    private static final long START = 1000000000L;
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    @Test
+    public void burstPassesThenRateApplies()
+    {
+        //5 per second, bursts of 10
+        XMPPMucRateLimiter.Bucket bucket = new XMPPMucRateLimiter.Bucket(5, 10);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message " + i + " of the burst", 0, bucket.tryReserve(START));
+        }
+        assertEquals(INTERVAL, bucket.tryReserve(START));
+        assertEquals(0, bucket.tryReserve(START + INTERVAL));
+    }
+
+    @Test
+    public void steadyRateNeverWaits()
+    {
+        XMPPMucRateLimiter.Bucket bucket = new XMPPMucRateLimiter.Bucket(5, 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, bucket.tryReserve(START + i * INTERVAL));
+        }
+    }
+
+    @Test
+    public void refusalTakesNothing()
+    {
+        XMPPMucRateLimiter.Bucket bucket = new XMPPMucRateLimiter.Bucket(5, 1);
+
+        assertEquals(0, bucket.tryReserve(START));
+        assertEquals(INTERVAL - 50, bucket.tryReserve(START + 50));
+        //Still counted from the message sent, the refused one did not push it back
+        assertEquals(INTERVAL - 100, bucket.tryReserve(START + 100));
+        assertEquals(0, bucket.tryReserve(START + INTERVAL));
+    }
+
+    @Test
+    public void releaseGivesTheMessageBack()
+    {
+        XMPPMucRateLimiter.Bucket bucket = new XMPPMucRateLimiter.Bucket(5, 1);
+
+        assertEquals(0, bucket.tryReserve(START));
+        bucket.release();
+        assertEquals(0, bucket.tryReserve(START));
+        assertEquals(INTERVAL, bucket.tryReserve(START));
+    }
+
+    @Test
+    public void throttledRoomLeavesTheAccountAlone()
+    {
+        System.setProperty("xmppmuc.rate.roomPerSecond", "0.1");
+        System.setProperty("xmppmuc.rate.roomBurst", "1");
+        System.setProperty("xmppmuc.rate.accountPerSecond", "0.1");
+        System.setProperty("xmppmuc.rate.accountBurst", "2");
+        XMPPMucMetrics metrics = new XMPPMucMetrics();
+        try {
+            XMPPMucRateLimiter limiter = new XMPPMucRateLimiter(metrics);
+            XMPPMucConferenceInstantMessagingServerDefinition server = new XMPPMucConferenceInstantMessagingServerDefinition(
+                    new InstantMessagingServerDefinitionImpl(1, "Alpha", "alpha.example.com", 5222, "bamboo", "secret", "bamboo", false, false));
+
+            assertEquals(0, limiter.tryAcquire(server, "a@conference.example.com"));
+            assertTrue(limiter.tryAcquire(server, "a@conference.example.com") > 0);
+            //The refused room took nothing from the account's burst of two
+            assertEquals(0, limiter.tryAcquire(server, "b@conference.example.com"));
+            assertTrue(limiter.tryAcquire(server, "c@conference.example.com") > 0);
+        } finally {
+            metrics.destroy();
+            System.clearProperty("xmppmuc.rate.roomPerSecond");
+            System.clearProperty("xmppmuc.rate.roomBurst");
+            System.clearProperty("xmppmuc.rate.accountPerSecond");
+            System.clearProperty("xmppmuc.rate.accountBurst");
+        }
+    }
+
+    @Test
+    public void refillsWhileIdle()
+    {
+        XMPPMucRateLimiter.Bucket bucket = new XMPPMucRateLimiter.Bucket(5, 10);
+        for (int i = 0; i < 10; i++) {
+            bucket.tryReserve(START);
+        }
+        assertFalse(bucket.isFull(START));
+
+        long refilled = START + 10 * INTERVAL;
+        assertTrue(bucket.isFull(refilled));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.tryReserve(refilled));
+        }
+        assertEquals(INTERVAL, bucket.tryReserve(refilled));
+    }
+
+    @Test
+    public void newBucketIsFull()
+    {
+        assertTrue(new XMPPMucRateLimiter.Bucket(5, 10).isFull(START));
+    }
+
+    @Test
+    public void zeroRateIsUnlimited()
+    {
+        XMPPMucRateLimiter.Bucket bucket = new XMPPMucRateLimiter.Bucket(0, 1);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, bucket.tryReserve(START));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * XMPPMucRecipientConfigCodec must read every configuration the JDOM based recipient saved, and write the same
+ * bytes JDOM's pretty printer did. The JDOM samples below are what XMLOutputter with Format.getPrettyFormat() and
+ * an omitted declaration produced: CRLF line separators, two space indent, trimmed text and " />" empty elements.
+ */
+public class XMPPMucRecipientConfigCodecTest
+{
+    private static final String ROOT = "com.ipsoft.plugins.bamboo.xmppmuc.XMPPMucNotificationRecipient";
+
+    private static final String JDOM_CONFIG =
+            "<" + ROOT + ">\r\n"
+            + "  <room>builds@conference.example.com</room>\r\n"
+            + "  <roompw>s3cret</roompw>\r\n"
+            + "  <nickname>Bamboo</nickname>\r\n"
+            + "</" + ROOT + ">\r\n";
+
+    private static final String JDOM_CONFIG_EMPTY =
+            "<" + ROOT + ">\r\n"
+            + "  <room>builds@conference.example.com</room>\r\n"
+            + "  <roompw />\r\n"
+            + "  <nickname />\r\n"
+            + "</" + ROOT + ">\r\n";
+
+    @Test
+    public void decodesJdomOutput()
+    {
+        XMPPMucRecipientConfig config = XMPPMucRecipientConfigCodec.decode(JDOM_CONFIG);
+
+        assertEquals("builds@conference.example.com", config.get("room"));
+        assertEquals("s3cret", config.get("roompw"));
+        assertEquals("Bamboo", config.get("nickname"));
+        assertNull(config.get("server"));
+    }
+
+    @Test
+    public void decodesJdomEmptyElementsAsEmptyText()
+    {
+        XMPPMucRecipientConfig config = XMPPMucRecipientConfigCodec.decode(JDOM_CONFIG_EMPTY);
+
+        assertEquals("builds@conference.example.com", config.get("room"));
+        assertEquals("", config.get("roompw"));
+        assertEquals("", config.get("nickname"));
+    }
+
+    @Test
+    public void decodesJdomEscapes()
+    {
+        String config = "<" + ROOT + ">\r\n"
+                + "  <room>a@conference.example.com&#xD;\nb@conference.example.com</room>\r\n"
+                + "  <roompw>&lt;p&amp;w&gt;</roompw>\r\n"
+                + "  <nickname>Bamboo \u00e9t\u00e9</nickname>\r\n"
+                + "</" + ROOT + ">\r\n";
+
+        XMPPMucRecipientConfig decoded = XMPPMucRecipientConfigCodec.decode(config);
+
+        assertEquals("a@conference.example.com\r\nb@conference.example.com", decoded.get("room"));
+        assertEquals("<p&w>", decoded.get("roompw"));
+        assertEquals("Bamboo \u00e9t\u00e9", decoded.get("nickname"));
+    }
+
+    @Test
+    public void decodesWithDeclarationAndUnixLineEndings()
+    {
+        String config = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<" + ROOT + ">\n"
+                + "  <room>builds@conference.example.com</room>\n"
+                + "  <roompw/>\n"
+                + "</" + ROOT + ">\n";
+
+        XMPPMucRecipientConfig decoded = XMPPMucRecipientConfigCodec.decode(config);
+
+        assertEquals("builds@conference.example.com", decoded.get("room"));
+        assertEquals("", decoded.get("roompw"));
+    }
+
+    @Test
+    public void encodesLikeJdom()
+    {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("room", "builds@conference.example.com");
+        values.put("roompw", "s3cret");
+        values.put("nickname", "Bamboo");
+        assertEquals(JDOM_CONFIG, XMPPMucRecipientConfigCodec.encode(values));
+
+        values.put("roompw", null);
+        values.put("nickname", "");
+        assertEquals(JDOM_CONFIG_EMPTY, XMPPMucRecipientConfigCodec.encode(values));
+    }
+
+    @Test
+    public void encodeTrimsLikeJdom()
+    {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("room", "  builds@conference.example.com\r\n");
+        values.put("roompw", " \t ");
+        values.put("nickname", "Bamboo");
+
+        String encoded = XMPPMucRecipientConfigCodec.encode(values);
+
+        assertEquals(JDOM_CONFIG_EMPTY.replace("  <nickname />", "  <nickname>Bamboo</nickname>"), encoded);
+    }
+
+    @Test
+    public void roundTrips()
+    {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("room", "a@conference.example.com\r\nb@conference.example.com");
+        values.put("roompw", "<p&w>\"'");
+        values.put("nickname", "Bamboo \u00e9t\u00e9 \u2603");
+        values.put("template", "[${plan}]\n${state} in ${duration}");
+        values.put("xhtml", "true");
+
+        XMPPMucRecipientConfig decoded = XMPPMucRecipientConfigCodec.decode(XMPPMucRecipientConfigCodec.encode(values));
+
+        assertEquals(values, decoded.getValues());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedConfig()
+    {
+        XMPPMucRecipientConfigCodec.decode("<" + ROOT + "><room>unclosed</" + ROOT + ">");
+    }
+}
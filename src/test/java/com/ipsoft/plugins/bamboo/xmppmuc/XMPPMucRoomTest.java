@@ -0,0 +1,77 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parsing of a recipient's room list and per-room passwords by XMPPMucRoom.
+ */
+public class XMPPMucRoomTest
+{
+    private static final String A = "a@conference.example.com";
+    private static final String B = "b@conference.example.com";
+
+    @Test
+    public void singleRoomUsesRoomPassword()
+    {
+        List<XMPPMucRoom> rooms = XMPPMucRoom.parseList(" " + A + " ", "shared", null);
+
+        assertEquals(1, rooms.size());
+        assertEquals(A, rooms.get(0).getJid());
+        assertEquals("shared", rooms.get(0).getPassword());
+    }
+
+    @Test
+    public void listIsSplitOnCommasAndLinesOnce()
+    {
+        List<XMPPMucRoom> rooms = XMPPMucRoom.parseList(A + ",\r\n" + B + "\n" + A, null, null);
+
+        assertEquals(2, rooms.size());
+        assertEquals(A, rooms.get(0).getJid());
+        assertEquals(B, rooms.get(1).getJid());
+        assertNull(rooms.get(1).getPassword());
+    }
+
+    @Test
+    public void ownPasswordMayHoldSeparators()
+    {
+        List<XMPPMucRoom> rooms = XMPPMucRoom.parseList(A + "\n" + B, "shared", B + " p,a|s s\r\n");
+
+        assertEquals("shared", rooms.get(0).getPassword());
+        assertEquals("p,a|s s", rooms.get(1).getPassword());
+    }
+
+    @Test
+    public void passwordLinesAreChecked()
+    {
+        assertEquals(0, XMPPMucRoom.invalidPasswordLine(null));
+        assertEquals(0, XMPPMucRoom.invalidPasswordLine(A + " one\n\n  " + B + " two"));
+        assertEquals(2, XMPPMucRoom.invalidPasswordLine(A + " one\n" + B));
+        assertEquals(1, XMPPMucRoom.invalidPasswordLine(A + " "));
+    }
+
+    @Test
+    public void malformedPasswordLinesAreIgnored()
+    {
+        Map<String, String> passwords = XMPPMucRoom.parsePasswords(A + "\n" + B + " two");
+
+        assertEquals(1, passwords.size());
+        assertEquals("two", passwords.get(B));
+    }
+
+    @Test
+    public void validJids()
+    {
+        assertTrue(new XMPPMucRoom(A, null).isValid());
+        assertFalse(new XMPPMucRoom("room@", null).isValid());
+        assertFalse(new XMPPMucRoom("@conference.example.com", null).isValid());
+        assertFalse(new XMPPMucRoom("room", null).isValid());
+    }
+}
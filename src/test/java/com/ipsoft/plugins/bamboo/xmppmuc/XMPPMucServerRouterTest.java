@@ -0,0 +1,181 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.instantmessagingserver.InstantMessagingServerDefinitionImpl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Room distribution and failover of XMPPMucServerRouter's consistent hash ring.
+ */
+public class XMPPMucServerRouterTest
+{
+    private static final int ROOMS = 3000;
+
+    private final XMPPMucConferenceInstantMessagingServerDefinition alpha = server(1, "Alpha", "alpha.example.com");
+    private final XMPPMucConferenceInstantMessagingServerDefinition beta = server(2, "Beta", "beta.example.com");
+    private final XMPPMucConferenceInstantMessagingServerDefinition gamma = server(3, "Gamma", "gamma.example.com");
+    private final List<FixedServers> caches = new ArrayList<FixedServers>();
+
+    @After
+    public void tearDown()
+    {
+        for (FixedServers cache : caches) {
+            cache.destroy();
+        }
+    }
+
+    @Test
+    public void spreadsRoomsEvenly()
+    {
+        XMPPMucServerRouter router = router(alpha, beta, gamma);
+
+        Map<XMPPMucConferenceInstantMessagingServerDefinition, Integer> shares = owners(router);
+
+        for (XMPPMucConferenceInstantMessagingServerDefinition server : Arrays.asList(alpha, beta, gamma)) {
+            int share = shares.containsKey(server) ? shares.get(server) : 0;
+            assertTrue(server.getName() + " got " + share + " of " + ROOMS + " rooms",
+                    share > ROOMS / 4 && share < ROOMS * 5 / 12);
+        }
+    }
+
+    @Test
+    public void routesEveryServerOnceOwnerFirst()
+    {
+        XMPPMucServerRouter router = router(alpha, beta, gamma);
+
+        for (int i = 0; i < 100; i++) {
+            List<XMPPMucConferenceInstantMessagingServerDefinition> route = router.route(room(i), null);
+            assertEquals(3, route.size());
+            assertTrue(route.containsAll(Arrays.asList(alpha, beta, gamma)));
+            assertEquals(route, router.route(room(i), null));
+        }
+    }
+
+    @Test
+    public void removingServerOnlyMovesItsRooms()
+    {
+        XMPPMucServerRouter before = router(alpha, beta, gamma);
+        XMPPMucServerRouter after = router(alpha, beta);
+
+        int moved = 0;
+        for (int i = 0; i < ROOMS; i++) {
+            XMPPMucConferenceInstantMessagingServerDefinition owner = before.route(room(i), null).get(0);
+            XMPPMucConferenceInstantMessagingServerDefinition newOwner = after.route(room(i), null).get(0);
+            if (owner.equals(gamma)) {
+                moved++;
+            } else {
+                assertEquals(room(i), owner, newOwner);
+            }
+        }
+        assertTrue(moved > 0);
+    }
+
+    @Test
+    public void failsOverAroundUnreachableServer()
+    {
+        XMPPMucServerRouter router = router(alpha, beta, gamma);
+        String room = room(7);
+        List<XMPPMucConferenceInstantMessagingServerDefinition> route = router.route(room, null);
+        XMPPMucConferenceInstantMessagingServerDefinition owner = route.get(0);
+
+        router.markUnreachable(owner);
+        List<XMPPMucConferenceInstantMessagingServerDefinition> failedOver = router.route(room, null);
+        assertEquals(route.get(1), failedOver.get(0));
+        assertEquals(route.get(2), failedOver.get(1));
+        //Still tried last, its retry period may be over before the others answer
+        assertEquals(owner, failedOver.get(2));
+
+        router.markReachable(owner);
+        assertEquals(route, router.route(room, null));
+    }
+
+    @Test
+    public void pinnedRoomOnlyGetsItsServer()
+    {
+        XMPPMucServerRouter router = router(alpha, beta, gamma);
+
+        assertEquals(Collections.singletonList(beta), router.route(room(1), "beta"));
+        assertEquals(Collections.singletonList(gamma), router.route(room(1), "bamboo@gamma.example.com"));
+        assertTrue(router.route(room(1), "delta").isEmpty());
+    }
+
+    @Test
+    public void findsServerByNameOrAccount()
+    {
+        List<XMPPMucConferenceInstantMessagingServerDefinition> servers = Arrays.asList(alpha, beta);
+
+        assertSame(alpha, XMPPMucServerRouter.findServer(servers, " ALPHA "));
+        assertSame(beta, XMPPMucServerRouter.findServer(servers, "bamboo@beta.example.com"));
+        assertNull(XMPPMucServerRouter.findServer(servers, "bamboo@gamma.example.com"));
+    }
+
+    @Test
+    public void singleServerTakesEveryRoom()
+    {
+        XMPPMucServerRouter router = router(alpha);
+
+        assertEquals(Collections.singletonList(alpha), router.route(room(1), null));
+        assertTrue(router(new XMPPMucConferenceInstantMessagingServerDefinition[0]).route(room(1), null).isEmpty());
+    }
+
+    private Map<XMPPMucConferenceInstantMessagingServerDefinition, Integer> owners(XMPPMucServerRouter router)
+    {
+        Map<XMPPMucConferenceInstantMessagingServerDefinition, Integer> shares = new HashMap<XMPPMucConferenceInstantMessagingServerDefinition, Integer>();
+        for (int i = 0; i < ROOMS; i++) {
+            XMPPMucConferenceInstantMessagingServerDefinition owner = router.route(room(i), null).get(0);
+            Integer share = shares.get(owner);
+            shares.put(owner, share != null ? share + 1 : 1);
+        }
+        return shares;
+    }
+
+    private XMPPMucServerRouter router(XMPPMucConferenceInstantMessagingServerDefinition... servers)
+    {
+        FixedServers cache = new FixedServers(Collections.unmodifiableList(Arrays.asList(servers)));
+        caches.add(cache);
+        return new XMPPMucServerRouter(cache);
+    }
+
+    private static String room(int i)
+    {
+        return "team" + i + "@conference.example.com";
+    }
+
+    private static XMPPMucConferenceInstantMessagingServerDefinition server(long id, String name, String host)
+    {
+        return new XMPPMucConferenceInstantMessagingServerDefinition(
+                new InstantMessagingServerDefinitionImpl(id, name, host, 5222, "bamboo", "secret", "bamboo", false, false));
+    }
+
+    /**
+     * Hands out a fixed server list instead of reading Bamboo's.
+     */
+    private static final class FixedServers extends XMPPMucServerDefinitionCache
+    {
+        private final List<XMPPMucConferenceInstantMessagingServerDefinition> servers;
+
+        FixedServers(List<XMPPMucConferenceInstantMessagingServerDefinition> servers)
+        {
+            super(null, null, null);
+            this.servers = servers;
+        }
+
+        public List<XMPPMucConferenceInstantMessagingServerDefinition> getServers()
+        {
+            return servers;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.ipsoft.plugins.bamboo.xmppmuc;
+
+import com.atlassian.bamboo.builder.BuildState;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which repeats XMPPMucSuppressor holds back, and how and from where their roll-ups are posted.
+ */
+public class XMPPMucSuppressorTest
+{
+    private static final String ROOM = "team@conference.example.com";
+    private static final String PLAN_KEY = "BAM-PLAN";
+    private static final long WINDOW_MILLIS = 60000;
+
+    private XMPPMucMetrics metrics;
+    private RecordingQueue queue;
+    private XMPPMucSuppressor suppressor;
+
+    @Before
+    public void setUp()
+    {
+        System.setProperty("xmppmuc.suppress.sweepSeconds", "1");
+        metrics = new XMPPMucMetrics();
+        queue = new RecordingQueue(metrics);
+        suppressor = new XMPPMucSuppressor(queue, metrics);
+    }
+
+    @After
+    public void tearDown()
+    {
+        suppressor.destroy();
+        queue.destroy();
+        metrics.destroy();
+        System.clearProperty("xmppmuc.suppress.sweepSeconds");
+    }
+
+    @Test
+    public void suppressesConsecutiveRepeats()
+    {
+        assertTrue(suppressor.accept(message(BuildState.FAILED, "#1 failed"), WINDOW_MILLIS));
+        assertFalse(suppressor.accept(message(BuildState.FAILED, "#2 failed"), WINDOW_MILLIS));
+        assertFalse(suppressor.accept(message(BuildState.FAILED, "#3 failed"), WINDOW_MILLIS));
+
+        suppressor.destroy();
+
+        assertEquals(1, queue.bodies().size());
+        assertEquals("2 more FAILED notifications for BAM-PLAN suppressed, the latest: #3 failed", queue.bodies().get(0));
+    }
+
+    @Test
+    public void stateChangeIsAlwaysPosted()
+    {
+        assertTrue(suppressor.accept(message(BuildState.FAILED, "#1 failed"), WINDOW_MILLIS));
+        assertTrue(suppressor.accept(message(BuildState.SUCCESS, "#2 passed"), WINDOW_MILLIS));
+        //Red again within the first window, the room must not be left believing it is green
+        assertTrue(suppressor.accept(message(BuildState.FAILED, "#3 failed"), WINDOW_MILLIS));
+        assertFalse(suppressor.accept(message(BuildState.FAILED, "#4 failed"), WINDOW_MILLIS));
+    }
+
+    @Test
+    public void rollUpOfAnOutdatedStateDoesNotRepeatItsText() throws InterruptedException
+    {
+        suppressor.accept(message(BuildState.FAILED, "#1 failed"), WINDOW_MILLIS);
+        suppressor.accept(message(BuildState.FAILED, "#2 failed"), WINDOW_MILLIS);
+        suppressor.accept(message(BuildState.SUCCESS, "#3 passed"), WINDOW_MILLIS);
+
+        assertEquals("1 more FAILED notifications for BAM-PLAN were suppressed before it changed to SUCCESS", queue.awaitBody());
+    }
+
+    @Test
+    public void rollUpsArePostedFromTheSweeper() throws InterruptedException
+    {
+        suppressor.accept(message(BuildState.FAILED, "#1 failed"), WINDOW_MILLIS);
+        suppressor.accept(message(BuildState.FAILED, "#2 failed"), WINDOW_MILLIS);
+        suppressor.accept(message(BuildState.SUCCESS, "#3 passed"), WINDOW_MILLIS);
+
+        //Closing the window on this thread left its roll-up to the sweeper
+        assertTrue(queue.bodies().isEmpty());
+        queue.awaitBody();
+        assertEquals("xmppmuc-suppressor", queue.threads.get(0));
+    }
+
+    @Test
+    public void otherPlansAndRoomsAreNotRepeats()
+    {
+        assertTrue(suppressor.accept(message(BuildState.FAILED, "#1 failed"), WINDOW_MILLIS));
+        assertTrue(suppressor.accept(new XMPPMucMessage(ROOM, null, "Bamboo", null, "other", null,
+                XMPPMucPriority.URGENT, "BAM-OTHER", BuildState.FAILED), WINDOW_MILLIS));
+        assertTrue(suppressor.accept(new XMPPMucMessage("other@conference.example.com", null, "Bamboo", null, "other", null,
+                XMPPMucPriority.URGENT, PLAN_KEY, BuildState.FAILED), WINDOW_MILLIS));
+        assertTrue(suppressor.accept(message(BuildState.FAILED, "#2 failed"), 0));
+    }
+
+    private static XMPPMucMessage message(BuildState state, String body)
+    {
+        return new XMPPMucMessage(ROOM, null, "Bamboo", null, body, null, XMPPMucPriority.NORMAL, PLAN_KEY, state);
+    }
+
+    /**
+     * Records what is enqueued and by which thread instead of delivering it.
+     */
+    private static final class RecordingQueue extends XMPPMucDeliveryQueue
+    {
+        private final List<XMPPMucMessage> messages = new ArrayList<XMPPMucMessage>();
+        private final List<String> threads = new ArrayList<String>();
+
+        RecordingQueue(XMPPMucMetrics metrics)
+        {
+            super(null, null, metrics);
+        }
+
+        public synchronized boolean enqueue(XMPPMucMessage message)
+        {
+            messages.add(message);
+            threads.add(Thread.currentThread().getName());
+            notifyAll();
+            return true;
+        }
+
+        synchronized List<String> bodies()
+        {
+            List<String> bodies = new ArrayList<String>();
+            for (XMPPMucMessage message : messages) {
+                bodies.add(message.getBody());
+            }
+            return bodies;
+        }
+
+        synchronized String awaitBody() throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (messages.isEmpty() && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertFalse("no roll-up was posted", messages.isEmpty());
+            return messages.get(0).getBody();
+        }
+    }
+}